@@ -0,0 +1,80 @@
+package com.learn._02_concurrentUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 分治任务基类（说明和基准测试见 _16_DivideAndConquer）
+ */
+abstract class DivideAndConquerTask<R> extends RecursiveTask<R> {
+    private static final long serialVersionUID = 1L;
+
+    // 自动阈值
+    static final int AUTO = 0;
+    // 自动阈值模式下，当前线程积压的任务超过这个数量时不再拆分
+    static final int SURPLUS = 3;
+
+    protected final int threshold;
+    // 子问题的结果缓存，为 null 时不做记忆化
+    protected final Map<Object, R> memo;
+
+    protected DivideAndConquerTask(int threshold, Map<Object, R> memo) {
+        this.threshold = threshold;
+        this.memo = memo;
+    }
+
+    // 问题规模
+    protected abstract int size();
+
+    // 顺序计算
+    protected abstract R computeSequentially();
+
+    // 拆分为子任务
+    protected abstract List<? extends DivideAndConquerTask<R>> split();
+
+    // 合并两个子结果，可以修改并返回其中一个（推荐把小的一方合并到大的一方中）
+    protected abstract R combine(R left, R right);
+
+    // 记忆化的键，返回 null 表示不缓存这个子问题
+    protected Object memoKey() {
+        return null;
+    }
+
+    @Override
+    protected final R compute() {
+        Object key = memo == null ? null : memoKey();
+        if (key != null) {
+            R cached = memo.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        R result = shouldSplit() ? computeInParallel() : computeSequentially();
+        if (key != null) {
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private boolean shouldSplit() {
+        if (size() <= Math.max(1, threshold)) {
+            return false;
+        }
+        return threshold != AUTO || getSurplusQueuedTaskCount() <= SURPLUS;
+    }
+
+    private R computeInParallel() {
+        List<? extends DivideAndConquerTask<R>> tasks = split();
+        // 除第一个子任务外全部异步执行，当前线程直接计算第一个子任务
+        for (int i = tasks.size() - 1; i > 0; i--) {
+            tasks.get(i).fork();
+        }
+        R result = tasks.get(0).compute();
+        // 按照 fork 的逆序 join，最后 fork 的任务最可能还在当前线程的队列顶部没有被窃取
+        for (int i = 1; i < tasks.size(); i++) {
+            result = combine(result, tasks.get(i).join());
+        }
+        return result;
+    }
+}
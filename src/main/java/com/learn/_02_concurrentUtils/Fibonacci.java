@@ -0,0 +1,44 @@
+package com.learn._02_concurrentUtils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 1 用 Fork/Join 这个并行计算框架计算斐波那契数列
+ */
+class Fibonacci extends RecursiveTask<Integer> {
+    final int n;
+
+    // 定义算到 index 到那几位的菲波那契数
+    public Fibonacci(int n) {
+        this.n = n;
+    }
+
+    // 实现 RecursiveTask 的 computer 方法，定义分治任务的具体操作
+    @Override
+    protected Integer compute() {
+        // 递归递出条件
+        if (n <= 1){
+            return n;
+        }
+        Fibonacci f1 = new Fibonacci(n - 1);
+        // 创建异步执行的子任务 f1，异步的执行任务 f1 的计算
+        f1.fork();
+        Fibonacci f2 = new Fibonacci(n - 2);
+        // 主线程负责继续执行任务 f2，同时等待异步子任务 f1 的执行，最后执行 + 的合并操作
+        return f2.compute() + f1.join();
+    }
+
+    public static void main(String[] args) {
+        // 创建分治任务线程池
+        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
+        // 创建分治任务
+        Fibonacci forkJoinTask = new Fibonacci(6);
+        // 分治任务线程池启动分治任务
+        Integer result = forkJoinPool.invoke(forkJoinTask);
+        // 输出结果
+        // value：0 1 1 2 3 5「8」
+        // index：0 1 2 3 4 5 6
+        System.out.println(result);
+    }
+}
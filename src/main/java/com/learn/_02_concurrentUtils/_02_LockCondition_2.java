@@ -1,7 +1,15 @@
 package com.learn._02_concurrentUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -34,14 +42,20 @@ public class _02_LockCondition_2 {
 
     private Condition done = lock.newCondition();
 
-    Object response = null;
+    // 响应结果，被等待线程在锁外读取（isDone），所以需要 volatile 保证可见性
+    volatile Object response = null;
 
     public Object get(long timeout) throws TimeoutException, InterruptedException {
         long start = System.currentTimeMillis();
         lock.lock();
         try{
             while (!isDone()){
-                done.await(timeout, TimeUnit.MICROSECONDS);
+                // 等待剩余的超时时间（单位必须和计时的单位一致，都是毫秒）
+                long remaining = timeout - (System.currentTimeMillis() - start);
+                if (remaining <= 0){
+                    break;
+                }
+                done.await(remaining, TimeUnit.MILLISECONDS);
                 // 被唤醒后有三种情况：
                 // 1. 收到响应 -> 直接返回
                 // 2. 没有收到响应，未超时间 -> 继续陷入阻塞
@@ -70,7 +84,8 @@ public class _02_LockCondition_2 {
     public void doReceived(Object resp){
         lock.lock();
         try {
-            if (response != null){
+            // 只接收第一次到达的响应
+            if (response == null){
                 response = resp;
                 done.signalAll();
             }
@@ -80,3 +95,302 @@ public class _02_LockCondition_2 {
     }
 
 }
+
+
+/**
+ * 仿照 Dubbo 的 DefaultFuture 实现 RPC 调用的异步转同步
+ *  - 发送请求时以请求 id 为 key 创建 DefaultFuture 并登记到全局的 FUTURES 中，
+ *    收到响应时（IO 线程）根据响应中的请求 id 找到对应的 DefaultFuture，完成它并唤醒等待线程。
+ *  - get(timeout) 支持超时等待；setCallback() 支持注册回调，响应到达后在锁外执行回调。
+ *  - 响应一直不到达的请求，由后台扫描线程定期分批清理：以超时响应完成它们，并从 FUTURES 中移除，
+ *    保证 FUTURES 不会因为丢失的响应而无限增长。
+ *  - 已完成的请求在读取结果时不需要加锁（volatile 读），只有真正需要等待时才加锁进入条件变量。
+ */
+class DefaultFuture {
+    // 全局的请求 id 生成器
+    private static final AtomicLong INVOKE_ID = new AtomicLong();
+    // 在途请求：<Key: 请求 id, Value: DefaultFuture>
+    private static final Map<Long, DefaultFuture> FUTURES = new ConcurrentHashMap<>();
+    // 扫描超时请求的时间间隔，和每批清理的最大数量
+    private static final long SCAN_INTERVAL_MILLIS = 30;
+    private static final int SCAN_BATCH = 1024;
+
+    static {
+        Thread scanner = new Thread(DefaultFuture::scanTimeout, "rpc-response-timeout-scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private final long id;
+    private final long timeoutMillis;
+    private final long start = System.currentTimeMillis();
+    private final Lock lock = new ReentrantLock();
+    private final Condition done = lock.newCondition();
+    private volatile RpcResponse response;
+    private ResponseCallback callback;
+
+    private DefaultFuture(long id, long timeoutMillis) {
+        this.id = id;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // 发送请求前创建 DefaultFuture 并登记
+    public static DefaultFuture newFuture(RpcRequest request, long timeoutMillis) {
+        DefaultFuture future = new DefaultFuture(request.getId(), timeoutMillis);
+        FUTURES.put(request.getId(), future);
+        return future;
+    }
+
+    public static long newId() {
+        return INVOKE_ID.getAndIncrement();
+    }
+
+    // 在途请求数
+    public static int pending() {
+        return FUTURES.size();
+    }
+
+    // 收到响应（IO 线程调用）
+    public static void received(RpcResponse response) {
+        DefaultFuture future = FUTURES.remove(response.getId());
+        if (future != null) {
+            future.doReceived(response);
+        }
+        // future 为 null 说明请求已经超时被清理，迟到的响应直接丢弃
+    }
+
+    public boolean isDone() {
+        return response != null;
+    }
+
+    // 同步等待响应，最多等待创建时指定的超时时间
+    public Object get() throws TimeoutException, InterruptedException {
+        return get(timeoutMillis);
+    }
+
+    public Object get(long timeout) throws TimeoutException, InterruptedException {
+        if (!isDone()) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            lock.lock();
+            try {
+                long remaining;
+                while (!isDone() && (remaining = deadline - System.nanoTime()) > 0) {
+                    done.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!isDone()) {
+                throw new TimeoutException("waiting response timeout, id=" + id);
+            }
+        }
+        return returnFromResponse();
+    }
+
+    private Object returnFromResponse() throws TimeoutException {
+        RpcResponse res = response;
+        if (res.getStatus() == RpcResponse.OK) {
+            return res.getResult();
+        }
+        if (res.getStatus() == RpcResponse.TIMEOUT) {
+            throw new TimeoutException(res.getErrorMsg());
+        }
+        throw new RuntimeException(res.getErrorMsg());
+    }
+
+    // 注册回调，如果响应已经到达则立即在当前线程执行
+    public void setCallback(ResponseCallback callback) {
+        boolean invokeNow;
+        lock.lock();
+        try {
+            invokeNow = isDone();
+            if (!invokeNow) {
+                this.callback = callback;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (invokeNow) {
+            invokeCallback(callback, response);
+        }
+    }
+
+    private void doReceived(RpcResponse res) {
+        ResponseCallback cb;
+        lock.lock();
+        try {
+            if (response != null) {
+                return;
+            }
+            response = res;
+            done.signalAll();
+            cb = callback;
+            callback = null;
+        } finally {
+            lock.unlock();
+        }
+        // 回调在锁外执行，避免用户代码持有锁的时间过长
+        if (cb != null) {
+            invokeCallback(cb, res);
+        }
+    }
+
+    private static void invokeCallback(ResponseCallback cb, RpcResponse res) {
+        try {
+            if (res.getStatus() == RpcResponse.OK) {
+                cb.done(res.getResult());
+            } else {
+                cb.caught(res.getStatus() == RpcResponse.TIMEOUT ?
+                        new TimeoutException(res.getErrorMsg()) : new RuntimeException(res.getErrorMsg()));
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 后台扫描线程：定期分批清理超时的请求
+    private static void scanTimeout() {
+        List<DefaultFuture> expired = new ArrayList<>(SCAN_BATCH);
+        while (true) {
+            try {
+                long now = System.currentTimeMillis();
+                for (DefaultFuture future : FUTURES.values()) {
+                    if (now - future.start > future.timeoutMillis) {
+                        expired.add(future);
+                    }
+                    // 攒够一批就处理一批，单次处理的数量有上限
+                    if (expired.size() == SCAN_BATCH) {
+                        expire(expired);
+                    }
+                }
+                expire(expired);
+                TimeUnit.MILLISECONDS.sleep(SCAN_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void expire(List<DefaultFuture> expired) {
+        for (DefaultFuture future : expired) {
+            // remove 成功才处理，避免和正常到达的响应重复完成
+            if (FUTURES.remove(future.id, future)) {
+                future.doReceived(new RpcResponse(future.id, RpcResponse.TIMEOUT, null,
+                        "waiting response timeout, id=" + future.id + ", timeout=" + future.timeoutMillis + "ms"));
+            }
+        }
+        expired.clear();
+    }
+
+    /*
+     * 模拟 RPC 调用：IO 线程随机延迟返回响应，部分请求的响应丢失
+     */
+    public static void main(String[] args) throws InterruptedException {
+        ScheduledExecutorService io = Executors.newScheduledThreadPool(2);
+        // 1 同步调用
+        for (int i = 0; i < 5; i++) {
+            RpcRequest request = new RpcRequest(newId(), "sayHello-" + i);
+            DefaultFuture future = newFuture(request, 200);
+            // 模拟网络传输：偶数请求 100ms 后返回响应，奇数请求的响应丢失
+            if (request.getId() % 2 == 0) {
+                io.schedule(() -> received(new RpcResponse(request.getId(), RpcResponse.OK,
+                        "hello " + request.getData(), null)), 100, TimeUnit.MILLISECONDS);
+            }
+            try {
+                System.out.println("sync  id=" + request.getId() + " -> " + future.get());
+            } catch (TimeoutException e) {
+                System.out.println("sync  id=" + request.getId() + " -> " + e.getMessage());
+            }
+        }
+
+        // 2 异步回调
+        CountDownLatch latch = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            RpcRequest request = new RpcRequest(newId(), "sayHi-" + i);
+            DefaultFuture future = newFuture(request, 200);
+            future.setCallback(new ResponseCallback() {
+                @Override
+                public void done(Object result) {
+                    System.out.println("async id=" + request.getId() + " -> " + result);
+                    latch.countDown();
+                }
+
+                @Override
+                public void caught(Throwable e) {
+                    System.out.println("async id=" + request.getId() + " -> " + e.getMessage());
+                    latch.countDown();
+                }
+            });
+            if (request.getId() % 2 == 0) {
+                io.schedule(() -> received(new RpcResponse(request.getId(), RpcResponse.OK,
+                        "hi " + request.getData(), null)), 50, TimeUnit.MILLISECONDS);
+            }
+        }
+        latch.await();
+        System.out.println("pending: " + pending());
+        io.shutdown();
+    }
+}
+
+// 响应回调
+interface ResponseCallback {
+    void done(Object result);
+
+    void caught(Throwable e);
+}
+
+// RPC 请求
+class RpcRequest {
+    private final long id;
+    private final Object data;
+
+    public RpcRequest(long id, Object data) {
+        this.id = id;
+        this.data = data;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Object getData() {
+        return data;
+    }
+}
+
+// RPC 响应
+class RpcResponse {
+    static final byte OK = 20;
+    static final byte TIMEOUT = 30;
+    static final byte SERVER_ERROR = 80;
+
+    private final long id;
+    private final byte status;
+    private final Object result;
+    private final String errorMsg;
+
+    public RpcResponse(long id, byte status, Object result, String errorMsg) {
+        this.id = id;
+        this.status = status;
+        this.result = result;
+        this.errorMsg = errorMsg;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+
+    public String getErrorMsg() {
+        return errorMsg;
+    }
+}
@@ -1,13 +1,6 @@
 package com.learn._02_concurrentUtils;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Vector;
 import java.util.concurrent.Semaphore;
-import java.util.function.Function;
 
 /**
  * Java 中的信号量机制
@@ -18,7 +11,9 @@ import java.util.function.Function;
  *
  * 实现一个互斥锁，仅仅是 Semaphore 的部分功能，Semaphore 还有一个功能是 Lock 不容易实现的，
  * 那就是：Semaphore 可以允许多个线程访问一个临界区。
- * 具体的例子是实现一个对象池的限流器。
+ * 具体的例子是实现一个对象池的限流器，见 ObjPool。
+ *
+ * 许可数根据下游延迟自动调整的限流器（AIMD / Vegas / Gradient）见 _22_AdaptiveLimiter。
  */
 public class _03_Semaphore {
 
@@ -63,78 +58,3 @@ public class _03_Semaphore {
         }
     }
 }
-
-
-/**
- * 信号量实现-对象池的限流器
- *  - 对象池一次性创建 N 个对象，之后的所有线程重复利用这些 N 个对象，
- *    对象在被释放前，也是不允许其他线程使用的。
- *  - 限流的意义是不允许多于 N 个线程同时进入临界区。
- *  - 如果不使用信号量机制实现限流，那就会出现多于 N 个的线程进入对象池导致取不出对象的异常。
- *
- * @param <T> 对象池的对象类型
- * @param <R> 使用对象池对象后返回值的类型
- */
-class ObjPool<T, R>{
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(ObjPool.class);
-
-    private final List<T> pool;
-
-    private final Semaphore semaphore;
-
-    public ObjPool(List<T> objs) {
-        this.pool = new Vector<T>();
-        this.pool.addAll(objs);
-        this.semaphore = new Semaphore(objs.size());
-    }
-
-    public R exec(Function<T, R> func) throws InterruptedException {
-        T t = null;
-        semaphore.acquire(); // 信号量--
-        try {
-            t = pool.remove(0);
-            return func.apply(t);
-        }finally {
-            // 有一个小 bug：如果在池中取不出对象抛出异常，
-            // finally 还是会执行然后把初始的 null 放回队列。其实应该不是 null 才放回池
-            pool.add(t);
-            semaphore.release(); // 信号量++
-        }
-    }
-
-    public static void main(String[] args) throws InterruptedException {
-        // 对象池中对象数量
-        int size = 5;
-        // 线程数量
-        int threads = 10;
-
-        ArrayList<String> objs = new ArrayList<>();
-        for (int i = 0; i < size; i++) {
-            objs.add("obj_" + i);
-        }
-        ObjPool<String, String> objectPool = new ObjPool<>(objs);
-
-        for (int i = 0; i < threads; i++) {
-            Thread thread = new Thread(()->{
-                try {
-                    objectPool.exec(obj -> {
-                        LOGGER.info("当前线程 id=[{}] name=[{}]，获取的对象 obj=[{}]",
-                                Thread.currentThread().getId(),
-                                Thread.currentThread().getName(), obj);
-                        return obj;
-                    });
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-            thread.start();
-        }
-    }
-
-}
-
-
-
-
-
@@ -2,6 +2,8 @@ package com.learn._02_concurrentUtils;
 
 import com.learn.common.CommTools;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.BrokenBarrierException;
@@ -15,6 +17,7 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * CountDownLatch 和 CyclicBarrier 是 Java 并发包提供的两个非常易用的线程同步工具类，
@@ -52,6 +55,16 @@ public class _06_CountDownLatchAndCyclicBarrier {
         return deliveryBank.remove(0);
     }
 
+    // 是否存在未对账订单
+    public static boolean hasPOrders(){
+        return !orderBank.isEmpty();
+    }
+
+    // 是否存在派送单
+    public static boolean hasDOrders(){
+        return !deliveryBank.isEmpty();
+    }
+
     // 执行对账操作
     public static String check(String pos, String dos){
         if (pos == null || dos == null){
@@ -224,6 +237,66 @@ public class _06_CountDownLatchAndCyclicBarrier {
         latch.await();
     }
 
+    // 对账系统-双缓冲批量交换优化
+    //  - CyclicBarrier 方案中两个查询线程每查询一条记录就要在屏障上会合一次，每条记录都要付出阻塞和唤醒的开销；
+    //  - 改为每个查询线程先攒满一批（N 条）再交换，对账线程处理第 k 批的同时，查询线程已经在填充第 k+1 批。
+    public static void checkSystemBatchExchangeOptimize() throws InterruptedException {
+        // 两个数据源：订单和派送单
+        BatchExchanger<String> exchanger = new BatchExchanger<>(2);
+
+        Thread threadGetOrder = new Thread(() -> fillBatches(exchanger, 0, orderBank, 100,
+                _06_CountDownLatchAndCyclicBarrier::getPOrders));
+        threadGetOrder.start();
+
+        Thread threadGetDelivery = new Thread(() -> fillBatches(exchanger, 1, deliveryBank, 100,
+                _06_CountDownLatchAndCyclicBarrier::getDOrders));
+        threadGetDelivery.start();
+
+        // 对账线程：每次拿到一轮中所有数据源的批次
+        List<List<String>> batches;
+        while ((batches = exchanger.take()) != null) {
+            List<String> P = batches.get(0);
+            List<String> D = batches.get(1);
+            // 一个数据源先结束时，另一个数据源本轮的批次更长，多出来的记录是单边记录
+            for (int i = 0; i < Math.max(P.size(), D.size()); i++) {
+                if (i >= D.size()) {
+                    save(P.get(i) + ": 缺少派送单");
+                } else if (i >= P.size()) {
+                    save(D.get(i) + ": 缺少订单");
+                } else {
+                    // 执行对账操作
+                    String diff = check(P.get(i), D.get(i));
+                    // 差异写入差异库
+                    save(diff);
+                }
+            }
+        }
+
+        threadGetOrder.join();
+        threadGetDelivery.join();
+    }
+
+    // 查询线程：攒满一批后交换，拿回一个空的缓冲区继续填充
+    private static void fillBatches(BatchExchanger<String> exchanger, int source, List<String> bank,
+                                    int batchSize, Supplier<String> query) {
+        try {
+            List<String> batch = new ArrayList<>(batchSize);
+            while (!bank.isEmpty()) {
+                batch.add(query.get());
+                if (batch.size() == batchSize) {
+                    batch = exchanger.publish(source, batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                exchanger.publish(source, batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 查询失败时也要结束该数据源，否则对账线程永远等不到这一轮
+            exchanger.finish(source);
+        }
+    }
 
     public static void initBank(){
         for (int i = 0; i < 1000; i++) {
@@ -286,6 +359,18 @@ public class _06_CountDownLatchAndCyclicBarrier {
         //     return null;
         // });
 
+        // 5 双缓冲批量交换优化-对账系统操作耗时：接近单个数据源的查询耗时（1000 条 × 1ms），每 100 条才同步一次
+        // countTimeExec(object -> {
+        //     try {
+        //         checkSystemBatchExchangeOptimize();
+        //     } catch (InterruptedException e) {
+        //         throw new RuntimeException(e);
+        //     }
+        //     return null;
+        // });
+
+        // 6 百万级订单的流式对账（批量查询 + 分区哈希关联 + 批量保存差异）见 _14_Reconciliation
+
         System.out.println("end");
     }
 
@@ -294,6 +379,121 @@ public class _06_CountDownLatchAndCyclicBarrier {
 
 
 
+/**
+ * 多数据源的双缓冲批量交换器（用「锁+条件变量」实现的、带数据的 Phaser）
+ *  - K 个数据源线程各自填充批次，调用 publish() 交出本轮的批次，同时换回一个空的缓冲区；
+ *  - 消费者线程调用 take() 一次拿到本轮所有数据源的批次，一轮只需要一次阻塞和唤醒，而不是每条记录一次；
+ *  - 每个数据源最多领先消费者一轮：消费者处理第 k 轮时，数据源可以填充第 k+1 轮，
+ *    想要交出第 k+2 轮时阻塞，等待消费者取走第 k+1 轮（背压）；
+ *  - 消费者上一轮拿到的批次在下一次 take() 时回收给数据源复用，稳定运行后不再分配新的缓冲区；
+ *  - 已经结束（finish）的数据源在之后的每一轮中都是空批次，所有数据源都结束且没有剩余批次时 take() 返回 null。
+ */
+class BatchExchanger<T> {
+    private final int sources;
+    private final List<List<T>> ready;
+    private final List<List<T>> spare;
+    private final boolean[] finished;
+    // 消费者正在处理的一轮批次，下一次 take() 时回收
+    private List<List<T>> taken;
+
+    private final Lock lock = new ReentrantLock();
+    // 条件变量：消费者已经取走上一轮
+    private final Condition slotFree = lock.newCondition();
+    // 条件变量：本轮所有数据源都已就绪
+    private final Condition roundReady = lock.newCondition();
+
+    public BatchExchanger(int sources) {
+        this.sources = sources;
+        this.ready = new ArrayList<>(Collections.nCopies(sources, (List<T>) null));
+        this.spare = new ArrayList<>(Collections.nCopies(sources, (List<T>) null));
+        this.finished = new boolean[sources];
+    }
+
+    // 数据源交出一个批次，返回一个可以继续填充的空缓冲区
+    public List<T> publish(int source, List<T> batch) throws InterruptedException {
+        lock.lock();
+        try {
+            while (ready.get(source) != null) {
+                slotFree.await();
+            }
+            ready.set(source, batch);
+            if (isRoundReady()) {
+                roundReady.signal();
+            }
+            List<T> buffer = spare.get(source);
+            spare.set(source, null);
+            return buffer != null ? buffer : new ArrayList<>(batch.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 数据源结束
+    public void finish(int source) {
+        lock.lock();
+        try {
+            finished[source] = true;
+            roundReady.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 消费者获取下一轮所有数据源的批次，所有数据源都结束时返回 null
+    public List<List<T>> take() throws InterruptedException {
+        lock.lock();
+        try {
+            recycle();
+            while (!isRoundReady()) {
+                roundReady.await();
+            }
+            boolean empty = true;
+            List<List<T>> round = new ArrayList<>(sources);
+            for (int i = 0; i < sources; i++) {
+                List<T> batch = ready.get(i);
+                ready.set(i, null);
+                if (batch != null) {
+                    empty = false;
+                }
+                round.add(batch != null ? batch : Collections.<T>emptyList());
+            }
+            if (empty) {
+                return null;
+            }
+            taken = round;
+            slotFree.signalAll();
+            return round;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 每个数据源要么已经交出本轮的批次，要么已经结束
+    private boolean isRoundReady() {
+        for (int i = 0; i < sources; i++) {
+            if (ready.get(i) == null && !finished[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 回收消费者上一轮处理完的批次
+    private void recycle() {
+        if (taken == null) {
+            return;
+        }
+        for (int i = 0; i < sources; i++) {
+            List<T> batch = taken.get(i);
+            if (batch instanceof ArrayList && spare.get(i) == null) {
+                batch.clear();
+                spare.set(i, batch);
+            }
+        }
+        taken = null;
+    }
+}
+
 /**
  * 判断所有子线程是否都执行完成的计数器
  *  - 主线程判断计时器是否为 0，如果不为 0 则主线程阻塞，为 0 则主线程继续执行，表示所有子线程已执行完。
@@ -77,6 +77,10 @@ public class _11_CompletableFuture {
         //    无论是否发生异常都会执行 whenComplete() 中的回调函数 consumer 和 handle() 中的回调函数 fn
         //    区别在于 whenComplete() 不支持返回结果，handle() 是支持返回结果的。
         // exception(); // 使用示例
+
+        // 6 按依赖划分线程池（舱壁）、超时、退避重试、类型化的 allOf/anyOf 以及 MDC 上下文传递，见 _19_AsyncFlow
+
+        // 7 记录每个异步阶段的耗时和执行线程，找出决定端到端延迟的关键路径，见 _20_StageTracing
     }
 
     public static void apply(){
@@ -2,9 +2,15 @@ package com.learn._02_concurrentUtils;
 
 import com.learn.common.CommTools;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -13,7 +19,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * 批量提交异步任务时建议使用 CompletionService：
@@ -59,6 +69,12 @@ public class _12_CompletionService {
         myDB.add(price);
     }
 
+    // 批量保存价格到自家数据库，一次写入的耗时和单条保存相同
+    public static void saveBatch(List<Integer> prices){
+        CommTools.sleep(100, TimeUnit.MILLISECONDS);
+        myDB.addAll(prices);
+    }
+
     // 1 串行操作，性能很慢
     public static void inquirySerial(){
         // 向电商S1询价，并保存
@@ -201,6 +217,32 @@ public class _12_CompletionService {
         executor.shutdown();
     }
 
+    // 5 使用 CompletionService + 批量异步写（write-behind）优化
+    // 询价结果一完成就交给保存阶段，保存阶段按照条数或者等待时间把多个结果合并成一次批量写入，
+    // 询价和保存完全重叠；写线程忙于上一次写入时到达的结果会自然地合并到下一批，结果越多，合并的收益越大。
+    public static void inquiryWriteBehind()
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ExecutorCompletionService<Integer> completionService =
+                new ExecutorCompletionService<>(executor);
+
+        completionService.submit(() -> getPriceByS1());
+        completionService.submit(() -> getPriceByS2());
+        completionService.submit(() -> getPriceByS3());
+
+        // 最多攒 16 条，或者第一条结果等待超过 10 毫秒就写一次
+        WriteBehindSaver<Integer> saver =
+                new WriteBehindSaver<>(16, 10, TimeUnit.MILLISECONDS, _12_CompletionService::saveBatch);
+        try {
+            // 所有询价结果都保存完成后 future 才完成，返回保存的条数
+            Integer saved = saver.saveAll(completionService, 3).get();
+            System.out.println("saved: " + saved + ", batches: " + saver.batches());
+        } finally {
+            saver.close();
+            executor.shutdown();
+        }
+    }
+
     /* 实现询价应用 */
     public static void main(String[] args) {
         // 920 毫秒
@@ -240,6 +282,18 @@ public class _12_CompletionService {
         //     }
         // });
 
+        // 410 毫秒
+        // 5 使用 CompletionService + 批量异步写（write-behind）优化，询价和保存完全重叠
+        // CommTools.countTimeExec(()->{
+        //     try {
+        //         inquiryWriteBehind();
+        //     } catch (InterruptedException | ExecutionException e) {
+        //         throw new RuntimeException(e);
+        //     }
+        // });
+
+        // 6 向多个电商分散询价、按照全部/任意 K 个/多数完成聚合，并对慢请求发出对冲请求，见 _18_ScatterGather
+
         // 打印询价应用保存的价格结果
         for (Integer price : myDB) {
             System.out.println(price);
@@ -248,6 +302,160 @@ public class _12_CompletionService {
 }
 
 
+/**
+ * 批量异步写（write-behind）的保存阶段：
+ *  - save() 只把结果放入队列并立即返回 CompletableFuture，所在的批次写入成功后 future 才完成，写入失败时整批的 future 都异常完成；
+ *  - 后台写线程从队列中取出第一条结果后，继续等待更多结果，攒够 batchSize 条或者第一条结果入队超过 linger 时间就执行一次批量写入，
+ *    写线程忙于上一次写入期间到达的结果已经等待过了，会直接合并到下一批；
+ *  - saveAll() 可以对接任意的 CompletionService，结果谁先完成谁先进入保存阶段，不需要等待全部询价结束；
+ *  - close() 会写完队列中剩余的结果后再停止写线程；close() 之后的 save() 返回异常完成的 future。
+ */
+class WriteBehindSaver<T> implements AutoCloseable {
+    private static final Object CLOSE = new Object();
+
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Consumer<List<T>> bulkWriter;
+    // 元素是 Pending 或者 CLOSE
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final LongAdder batches = new LongAdder();
+    // 由 this 保护：检查 closed 和入队必须是原子的，否则 close() 之后入队的结果永远不会被写入
+    private boolean closed;
+
+    public WriteBehindSaver(int batchSize, long linger, TimeUnit unit, Consumer<List<T>> bulkWriter) {
+        this.batchSize = batchSize;
+        this.lingerNanos = unit.toNanos(linger);
+        this.bulkWriter = bulkWriter;
+        this.writer = new Thread(this::writeLoop, "write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public CompletableFuture<Void> save(T item) {
+        Pending<T> pending = new Pending<>(item);
+        synchronized (this) {
+            if (!closed) {
+                queue.add(pending);
+                return pending.future;
+            }
+        }
+        pending.future.completeExceptionally(new IllegalStateException("saver closed"));
+        return pending.future;
+    }
+
+    /**
+     * 在调用线程中依次取出 source 中完成的 count 个结果并提交保存，返回的 future 在全部保存完成后完成，值为保存的条数。
+     * 任意一个任务执行失败或者保存失败，返回的 future 都会异常完成。
+     */
+    public CompletableFuture<Integer> saveAll(CompletionService<T> source, int count) throws InterruptedException {
+        List<CompletableFuture<Void>> saved = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Future<T> done = source.take();
+            try {
+                saved.add(save(done.get()));
+            } catch (ExecutionException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e.getCause());
+                saved.add(failed);
+            }
+        }
+        return CompletableFuture.allOf(saved.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> saved.size());
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    // 等待写线程写完剩余的结果；等待时被中断则恢复中断标记并返回，写线程仍会在后台写完剩余的结果
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                queue.add(CLOSE);
+            }
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeLoop() {
+        List<Pending<T>> batch = new ArrayList<>(batchSize);
+        boolean running = true;
+        try {
+            while (running) {
+                Object first = queue.take();
+                if (first == CLOSE) {
+                    break;
+                }
+                Pending<T> head = (Pending<T>) first;
+                batch.add(head);
+                long deadline = head.enqueuedAt + lingerNanos;
+                // 攒批：攒够 batchSize 条或者超过等待时间
+                while (batch.size() < batchSize) {
+                    Object next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == CLOSE) {
+                        running = false;
+                        break;
+                    }
+                    batch.add((Pending<T>) next);
+                }
+                flush(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 停止后不再接收新的结果，队列中剩下的结果都以异常完成，避免调用方永远等待
+        synchronized (this) {
+            closed = true;
+        }
+        Object rest;
+        while ((rest = queue.poll()) != null) {
+            if (rest != CLOSE) {
+                ((Pending<T>) rest).future.completeExceptionally(new IllegalStateException("saver closed"));
+            }
+        }
+    }
+
+    private void flush(List<Pending<T>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        try {
+            bulkWriter.accept(items);
+            batches.increment();
+            for (Pending<T> pending : batch) {
+                pending.future.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+        batch.clear();
+    }
+
+    private static class Pending<T> {
+        final T item;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final long enqueuedAt = System.nanoTime();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+}
+
 /**
  * 利用 CompletionService 实现 Dubbo 中的 Forking Cluster 功能，
  * 也就是并行地调用多个查询服务，只要有一个成功返回结果，整个服务就可以返回了
@@ -274,7 +482,7 @@ class ForkingCluster{
         return null;
     }
 
-    public static void main(String[] args) throws InterruptedException, ExecutionException {
+    public static void main(String[] args) throws InterruptedException, ExecutionException, TimeoutException {
         ExecutorService executor = Executors.newFixedThreadPool(3);
         ExecutorCompletionService<Integer> completionService
                 = new ExecutorCompletionService<>(executor);
@@ -304,5 +512,106 @@ class ForkingCluster{
 
         // 打印结果
         System.out.println(result);
+
+        // 可复用的版本：共享线程池、每次调用有截止时间、可配置的成功条件，并统计每个服务商胜出的次数
+        ExecutorService shared = Executors.newCachedThreadPool();
+        ForkingInvoker<String, Integer> invoker = new ForkingInvoker<>(shared, Objects::nonNull);
+        invoker.addBackend("S1", ForkingCluster::getCodeByS1);
+        invoker.addBackend("S2", ForkingCluster::getCodeByS2);
+        invoker.addBackend("S3", ForkingCluster::getCodeByS3);
+        for (int i = 0; i < 10; i++) {
+            System.out.println(invoker.invoke(addr, 500, TimeUnit.MILLISECONDS));
+        }
+        System.out.println(invoker);
+        shared.shutdown();
+    }
+}
+
+/**
+ * 通用的 Forking Cluster 调用器：并行调用所有后端，返回第一个满足成功条件的结果
+ *  - 所有调用共享同一个线程池，不再每次调用都创建线程池；
+ *  - 每次调用有截止时间，超时抛出 TimeoutException；
+ *  - 成功条件可配置（默认是非 null），不满足条件的结果和异常都视为该后端失败，所有后端都失败时抛出 ExecutionException；
+ *  - 无论成功、失败、超时还是调用线程被中断，都会取消所有还在执行的调用（cancel(true) 中断执行线程），
+ *    调用线程被中断时抛出 InterruptedException（按照惯例，抛出时中断标记已经被清除）；
+ *  - 统计每个后端胜出的次数，以及超时和全部失败的次数。
+ */
+class ForkingInvoker<Q, R> {
+    interface Backend<Q, R> {
+        R call(Q request) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    private final Predicate<? super R> success;
+    private final Map<String, Backend<Q, R>> backends = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> wins = new ConcurrentHashMap<>();
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder allFailed = new LongAdder();
+
+    public ForkingInvoker(ExecutorService executor, Predicate<? super R> success) {
+        this.executor = executor;
+        this.success = success;
+    }
+
+    public void addBackend(String name, Backend<Q, R> backend) {
+        backends.put(name, backend);
+        wins.putIfAbsent(name, new LongAdder());
+    }
+
+    public void removeBackend(String name) {
+        backends.remove(name);
+    }
+
+    public R invoke(Q request, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        invocations.increment();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ExecutorCompletionService<Map.Entry<String, R>> completionService =
+                new ExecutorCompletionService<>(executor);
+        List<Future<Map.Entry<String, R>>> futures = new ArrayList<>(backends.size());
+        Throwable lastFailure = null;
+        try {
+            for (Map.Entry<String, Backend<Q, R>> backend : backends.entrySet()) {
+                String name = backend.getKey();
+                Backend<Q, R> call = backend.getValue();
+                futures.add(completionService.submit(() -> new AbstractMap.SimpleImmutableEntry<>(name, call.call(request))));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Map.Entry<String, R>> future =
+                        completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    timeouts.increment();
+                    throw new TimeoutException("no successful result within " + timeout + " " + unit);
+                }
+                try {
+                    Map.Entry<String, R> result = future.get();
+                    if (success.test(result.getValue())) {
+                        wins.get(result.getKey()).increment();
+                        return result.getValue();
+                    }
+                    lastFailure = new IllegalStateException(result.getKey() + " returned " + result.getValue());
+                } catch (ExecutionException e) {
+                    lastFailure = e.getCause();
+                }
+            }
+            allFailed.increment();
+            throw new ExecutionException("all backends failed", lastFailure);
+        } finally {
+            // 取消所有还在执行的调用
+            for (Future<Map.Entry<String, R>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ForkingInvoker{" +
+                "invocations=" + invocations +
+                ", wins=" + wins +
+                ", timeouts=" + timeouts +
+                ", allFailed=" + allFailed +
+                '}';
     }
 }
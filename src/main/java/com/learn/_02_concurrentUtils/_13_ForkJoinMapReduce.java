@@ -1,7 +1,7 @@
 package com.learn._02_concurrentUtils;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.learn.common.Object2IntMap;
+
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
 
@@ -57,48 +57,10 @@ import java.util.concurrent.RecursiveTask;
  *  但是如果存在 I/O 密集型的并行流计算，
  *  那么很可能会因为一个很慢的 I/O 计算而拖慢整个系统的性能。
  *  所以建议用不同的 ForkJoinPool 执行不同类型的计算任务。
+ *
+ * 1 用 Fork/Join 计算斐波那契数列的示例见 Fibonacci
  */
 
-/**
- * 1 用 Fork/Join 这个并行计算框架计算斐波那契数列
- */
-class Fibonacci extends RecursiveTask<Integer> {
-    final int n;
-
-    // 定义算到 index 到那几位的菲波那契数
-    public Fibonacci(int n) {
-        this.n = n;
-    }
-
-    // 实现 RecursiveTask 的 computer 方法，定义分治任务的具体操作
-    @Override
-    protected Integer compute() {
-        // 递归递出条件
-        if (n <= 1){
-            return n;
-        }
-        Fibonacci f1 = new Fibonacci(n - 1);
-        // 创建异步执行的子任务 f1，异步的执行任务 f1 的计算
-        f1.fork();
-        Fibonacci f2 = new Fibonacci(n - 2);
-        // 主线程负责继续执行任务 f2，同时等待异步子任务 f1 的执行，最后执行 + 的合并操作
-        return f2.compute() + f1.join();
-    }
-
-    public static void main(String[] args) {
-        // 创建分治任务线程池
-        ForkJoinPool forkJoinPool = new ForkJoinPool(4);
-        // 创建分治任务
-        Fibonacci forkJoinTask = new Fibonacci(6);
-        // 分治任务线程池启动分治任务
-        Integer result = forkJoinPool.invoke(forkJoinTask);
-        // 输出结果
-        // value：0 1 1 2 3 5「8」
-        // index：0 1 2 3 4 5 6
-        System.out.println(result);
-    }
-}
-
 /**
  * 2 模拟 MapReduce 统计单词数量
  *
@@ -123,7 +85,7 @@ public class _13_ForkJoinMapReduce {
         // 创建分治任务
         MapReduce mapReduceTask = new MapReduce(file, 0, file.length);
         // 启动分治任务
-        Map<String, Integer> result = forkJoinPool.invoke(mapReduceTask);
+        Object2IntMap<String> result = forkJoinPool.invoke(mapReduceTask);
         // 输出结果
         result.forEach((k,v)->{ System.out.println(k + " : " + v); });
         // hello：4
@@ -135,7 +97,8 @@ public class _13_ForkJoinMapReduce {
     }
 
     // 模仿 MapReduce 操作
-    static class MapReduce extends RecursiveTask<Map<String, Integer>>{
+    // 计数使用开放寻址的 Object2IntMap，累加时不会装箱，也没有 Entry 对象
+    static class MapReduce extends RecursiveTask<Object2IntMap<String>>{
         String [] file;
         int start;
         int end;
@@ -145,7 +108,7 @@ public class _13_ForkJoinMapReduce {
             this.end = end;
         }
         @Override
-        protected Map<String, Integer> compute() {
+        protected Object2IntMap<String> compute() {
             // 递归递出条件
             if (end - start == 1){
                 // 计算单行内容的单次数量
@@ -161,32 +124,29 @@ public class _13_ForkJoinMapReduce {
         }
 
         // 统计单行的单词数量
-        public Map<String, Integer> calc(String line){
-            Map<String, Integer> map = new HashMap<>();
+        public Object2IntMap<String> calc(String line){
+            Object2IntMap<String> map = new Object2IntMap<>();
             // 以一个或多个空格进行单词切分
             String[] words = line.split("\\s+");
             for (String word : words) {
-                map.merge(word, 1, Integer::sum);
+                map.addTo(word, 1);
             }
             // 一行中每个单词的出现次数
             return map;
         }
 
         // 合并结果
-        public Map<String, Integer> merge(Map<String, Integer> map1, Map<String, Integer> map2){
-            Map<String, Integer> mergeMap = new HashMap<>();
-            // 选择数量少的 map 进行遍历合并，减少便利次数，提高性能
-            Map<String, Integer> minSizeMap = map1;
-            Map<String, Integer> maxSizeMap = map2;
+        public Object2IntMap<String> merge(Object2IntMap<String> map1, Object2IntMap<String> map2){
+            // 选择数量少的 map 批量合并到数量多的 map 中，既减少遍历次数，也不需要新建 map
+            // （带顺序阈值、自动拆分的通用分治任务见 _16_DivideAndConquer）
+            Object2IntMap<String> minSizeMap = map1;
+            Object2IntMap<String> maxSizeMap = map2;
             if (minSizeMap.size() > maxSizeMap.size()){
                 minSizeMap = map2;
                 maxSizeMap = map1;
             }
-            mergeMap.putAll(maxSizeMap);
-            minSizeMap.forEach((k,v)->{
-                mergeMap.merge(k, v, Integer::sum);
-            });
-            return mergeMap;
+            maxSizeMap.addAll(minSizeMap);
+            return maxSizeMap;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,361 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.CommTools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 流式对账引擎（_06_CountDownLatchAndCyclicBarrier 中对账系统的百万级版本）
+ *
+ * 问题：
+ *  - _06 中每次只查询一条订单和一条派送单，每条记录都要经过一次 CyclicBarrier 的同步；
+ *  - Vector.remove(0) 是 O(n) 的操作，所有的对账和保存都由一个线程完成；
+ *  - 订单和派送单必须严格按照相同的顺序出现，否则就会对错。
+ *
+ * 方案：
+ *  1）两个查询线程批量拉取订单和派送单（一次往返拉取 fetchSize 条）；
+ *  2）按订单号把记录分区（partition），同一个订单号的订单和派送单一定进入同一个分区，
+ *     每个分区由一个线程独占处理，分区内部的数据结构不需要加锁；
+ *  3）分区内做对称哈希关联（symmetric hash join）：先到的一方放入本方的待匹配表，
+ *     后到的一方在对方的待匹配表中找到后立即对账，两个数据源不需要按照相同的顺序输出；
+ *  4）只保存差异，差异在分区内攒批后批量写入差异库；
+ *  5）两个数据源都结束后，待匹配表中剩下的记录就是「缺少派送单」或「缺少订单」的差异。
+ *
+ * 分区队列是有界的，对账跟不上查询时查询线程阻塞（背压）。
+ * 待匹配表的大小取决于两个数据源之间的乱序程度，而不是数据总量。
+ * 任意一个查询或者对账任务失败，其他任务都会被取消，run() 抛出 ExecutionException。
+ *
+ * QueryReconSource 把 _06 中逐条查询的 getPOrders()/getDOrders() 接入引擎，差异通过 _06 的 save() 写入差异库。
+ */
+public class _14_Reconciliation {
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int count = 1_000_000;
+        Random random = new Random(7);
+        List<ReconRecord> orders = new ArrayList<>(count);
+        List<ReconRecord> deliveries = new ArrayList<>(count);
+        int expectedDiffs = 0;
+        for (int i = 0; i < count; i++) {
+            String content = "amount=" + (i % 997);
+            orders.add(new ReconRecord(i, content));
+            int r = random.nextInt(10_000);
+            if (r == 0) {
+                // 缺少派送单
+                expectedDiffs++;
+            } else if (r == 1) {
+                // 派送单和订单不一致
+                deliveries.add(new ReconRecord(i, content + "!"));
+                expectedDiffs++;
+            } else {
+                deliveries.add(new ReconRecord(i, content));
+            }
+        }
+        // 派送单在 1 万条的窗口内乱序
+        for (int i = 0; i < deliveries.size(); i++) {
+            int j = Math.min(deliveries.size() - 1, i + random.nextInt(10_000));
+            ReconRecord t = deliveries.get(i);
+            deliveries.set(i, deliveries.get(j));
+            deliveries.set(j, t);
+        }
+
+        LongAdder saved = new LongAdder();
+        LongAdder saveCalls = new LongAdder();
+        DiffSink sink = diffs -> {
+            // 模拟一次批量写入差异库
+            CommTools.sleep(1, TimeUnit.MILLISECONDS);
+            saved.add(diffs.size());
+            saveCalls.increment();
+        };
+
+        ReconciliationEngine engine = new ReconciliationEngine(Runtime.getRuntime().availableProcessors(), 1000, 500);
+        long start = System.nanoTime();
+        ReconResult result = engine.run(new ListReconSource(orders), new ListReconSource(deliveries), sink);
+        long cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(result);
+        System.out.println("对账 " + count + " 条，耗时 " + cost + " ms，差异 " + saved.sum()
+                + " 条（预期 " + expectedDiffs + " 条），批量写入 " + saveCalls.sum() + " 次");
+
+        // 接入 _06 中的对账系统：查询未对账订单和派送单，差异写入差异库
+        _06_CountDownLatchAndCyclicBarrier.initBank();
+        start = System.nanoTime();
+        ReconResult bankResult = engine.run(
+                new QueryReconSource(_06_CountDownLatchAndCyclicBarrier::hasPOrders,
+                        _06_CountDownLatchAndCyclicBarrier::getPOrders),
+                new QueryReconSource(_06_CountDownLatchAndCyclicBarrier::hasDOrders,
+                        _06_CountDownLatchAndCyclicBarrier::getDOrders),
+                diffs -> diffs.forEach(_06_CountDownLatchAndCyclicBarrier::save));
+        cost = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("_06 对账系统：" + bankResult + "，耗时 " + cost + " ms");
+    }
+}
+
+/**
+ * 对账记录：订单号 + 需要对账的内容
+ */
+final class ReconRecord {
+    final long orderId;
+    final String content;
+
+    ReconRecord(long orderId, String content) {
+        this.orderId = orderId;
+        this.content = content;
+    }
+}
+
+/**
+ * 批量查询数据源：每次最多拉取 max 条记录追加到 out 中，返回拉取的条数，返回 0 表示没有更多记录
+ */
+interface ReconSource {
+    int fetch(List<ReconRecord> out, int max) throws InterruptedException;
+}
+
+/**
+ * 批量写入差异库
+ */
+interface DiffSink {
+    void saveAll(List<String> diffs);
+}
+
+/**
+ * 内存中的数据源，每次拉取模拟 1ms 的数据库往返
+ */
+class ListReconSource implements ReconSource {
+    private final List<ReconRecord> records;
+    private int cursor;
+
+    ListReconSource(List<ReconRecord> records) {
+        this.records = records;
+    }
+
+    @Override
+    public int fetch(List<ReconRecord> out, int max) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(1);
+        int end = Math.min(records.size(), cursor + max);
+        out.addAll(records.subList(cursor, end));
+        int n = end - cursor;
+        cursor = end;
+        return n;
+    }
+}
+
+/**
+ * 逐条查询的数据源（例如 _06 中的 getPOrders()/getDOrders()），查询结果就是订单号
+ */
+class QueryReconSource implements ReconSource {
+    private final BooleanSupplier hasMore;
+    private final Supplier<String> query;
+
+    QueryReconSource(BooleanSupplier hasMore, Supplier<String> query) {
+        this.hasMore = hasMore;
+        this.query = query;
+    }
+
+    @Override
+    public int fetch(List<ReconRecord> out, int max) {
+        int n = 0;
+        while (n < max && hasMore.getAsBoolean()) {
+            String record = query.get();
+            out.add(new ReconRecord(Long.parseLong(record), record));
+            n++;
+        }
+        return n;
+    }
+}
+
+/**
+ * 对账结果统计
+ */
+final class ReconResult {
+    final LongAdder matched = new LongAdder();
+    final LongAdder mismatched = new LongAdder();
+    final LongAdder missingDelivery = new LongAdder();
+    final LongAdder missingOrder = new LongAdder();
+
+    @Override
+    public String toString() {
+        return "ReconResult{" +
+                "matched=" + matched +
+                ", mismatched=" + mismatched +
+                ", missingDelivery=" + missingDelivery +
+                ", missingOrder=" + missingOrder +
+                '}';
+    }
+}
+
+/**
+ * 分区并行的流式对账引擎
+ */
+class ReconciliationEngine {
+    // 某个数据源结束的标记
+    private static final ReconBatch ORDER_END = new ReconBatch(true, null);
+    private static final ReconBatch DELIVERY_END = new ReconBatch(false, null);
+
+    private final int partitions;
+    private final int fetchSize;
+    private final int saveBatch;
+
+    ReconciliationEngine(int partitions, int fetchSize, int saveBatch) {
+        this.partitions = partitions;
+        this.fetchSize = fetchSize;
+        this.saveBatch = saveBatch;
+    }
+
+    public ReconResult run(ReconSource orders, ReconSource deliveries, DiffSink sink)
+            throws InterruptedException, ExecutionException {
+        List<BlockingQueue<ReconBatch>> queues = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            queues.add(new ArrayBlockingQueue<>(64));
+        }
+        ReconResult result = new ReconResult();
+        ExecutorService es = Executors.newFixedThreadPool(partitions + 2);
+        CompletionService<Void> cs = new ExecutorCompletionService<>(es);
+        List<Future<Void>> futures = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            futures.add(cs.submit(() -> fetch(orders, true, queues, stopped)));
+            futures.add(cs.submit(() -> fetch(deliveries, false, queues, stopped)));
+            for (BlockingQueue<ReconBatch> queue : queues) {
+                futures.add(cs.submit(() -> join(queue, sink, result)));
+            }
+            // 按完成顺序等待：按提交顺序等待时，分区任务失败后查询线程阻塞在 put() 上，永远等不到它失败的结果
+            for (int i = 0; i < futures.size(); i++) {
+                cs.take().get();
+            }
+        } finally {
+            // 任意一个任务失败（或者调用方被中断）时取消其他任务，阻塞在队列上的线程被中断后退出；
+            // 数据源可能吞掉中断（例如 _06 中通过 CommTools.sleep() 查询），查询线程还会检查 stopped
+            stopped.set(true);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            es.shutdownNow();
+        }
+        return result;
+    }
+
+    // 查询线程：批量拉取记录，按订单号分区后投递到各个分区的队列
+    private Void fetch(ReconSource source, boolean order, List<BlockingQueue<ReconBatch>> queues,
+                       AtomicBoolean stopped) throws InterruptedException {
+        List<ReconRecord> buf = new ArrayList<>(fetchSize);
+        List<List<ReconRecord>> parts = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            parts.add(new ArrayList<>());
+        }
+        while (!stopped.get() && source.fetch(buf, fetchSize) > 0) {
+            for (ReconRecord record : buf) {
+                parts.get(partition(record.orderId)).add(record);
+            }
+            for (int i = 0; i < partitions; i++) {
+                List<ReconRecord> part = parts.get(i);
+                if (!part.isEmpty()) {
+                    put(queues.get(i), new ReconBatch(order, part), stopped);
+                    parts.set(i, new ArrayList<>(part.size()));
+                }
+            }
+            buf.clear();
+        }
+        for (BlockingQueue<ReconBatch> queue : queues) {
+            put(queue, order ? ORDER_END : DELIVERY_END, stopped);
+        }
+        return null;
+    }
+
+    // 分区队列满时等待（背压），对账已经停止时放弃投递
+    private static void put(BlockingQueue<ReconBatch> queue, ReconBatch batch, AtomicBoolean stopped)
+            throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (stopped.get()) {
+                throw new InterruptedException("reconciliation stopped");
+            }
+        }
+    }
+
+    // 分区线程：对称哈希关联，对账并批量保存差异
+    private Void join(BlockingQueue<ReconBatch> queue, DiffSink sink, ReconResult result)
+            throws InterruptedException {
+        Map<Long, ReconRecord> pendingOrders = new HashMap<>();
+        Map<Long, ReconRecord> pendingDeliveries = new HashMap<>();
+        List<String> diffs = new ArrayList<>(saveBatch);
+        long matched = 0;
+        long mismatched = 0;
+        int ends = 0;
+        while (ends < 2) {
+            ReconBatch batch = queue.take();
+            if (batch.records == null) {
+                ends++;
+                continue;
+            }
+            Map<Long, ReconRecord> mine = batch.order ? pendingOrders : pendingDeliveries;
+            Map<Long, ReconRecord> other = batch.order ? pendingDeliveries : pendingOrders;
+            for (ReconRecord record : batch.records) {
+                ReconRecord pair = other.remove(record.orderId);
+                if (pair == null) {
+                    mine.put(record.orderId, record);
+                    continue;
+                }
+                ReconRecord pos = batch.order ? record : pair;
+                ReconRecord dos = batch.order ? pair : record;
+                // 复用 _06 中的对账操作
+                if ("YES".equals(_06_CountDownLatchAndCyclicBarrier.check(pos.content, dos.content))) {
+                    matched++;
+                } else {
+                    mismatched++;
+                    diffs.add(pos.orderId + ": " + pos.content + " <> " + dos.content);
+                    if (diffs.size() >= saveBatch) {
+                        sink.saveAll(diffs);
+                        diffs = new ArrayList<>(saveBatch);
+                    }
+                }
+            }
+        }
+        // 两个数据源都结束了，剩下的都是单边记录
+        for (ReconRecord record : pendingOrders.values()) {
+            diffs.add(record.orderId + ": 缺少派送单");
+        }
+        for (ReconRecord record : pendingDeliveries.values()) {
+            diffs.add(record.orderId + ": 缺少订单");
+        }
+        for (int i = 0; i < diffs.size(); i += saveBatch) {
+            sink.saveAll(diffs.subList(i, Math.min(diffs.size(), i + saveBatch)));
+        }
+        result.matched.add(matched);
+        result.mismatched.add(mismatched);
+        result.missingDelivery.add(pendingOrders.size());
+        result.missingOrder.add(pendingDeliveries.size());
+        return null;
+    }
+
+    private int partition(long orderId) {
+        long h = orderId * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % partitions);
+    }
+
+    /**
+     * 投递到分区的一批记录，records 为 null 表示该数据源已经结束
+     */
+    private static final class ReconBatch {
+        final boolean order;
+        final List<ReconRecord> records;
+
+        ReconBatch(boolean order, List<ReconRecord> records) {
+            this.order = order;
+            this.records = records;
+        }
+    }
+}
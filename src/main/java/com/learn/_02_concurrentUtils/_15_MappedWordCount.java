@@ -0,0 +1,373 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.HashTables;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 大文件的并行分块单词统计（_13_ForkJoinMapReduce 中 MapReduce 的文件版本）
+ *
+ * 问题：
+ *  - MapReduce 一直拆分到每个叶子任务只有一行，每一行都新建一个 HashMap，
+ *    每个单词都要 split 出一个 String，merge 时还要把两个 map 拷贝到第三个 map 中。
+ *
+ * 方案：
+ *  1）把文件按字节范围切分为多个块（chunk），块的边界对齐到空白字符，保证一个单词不会被切到两个块中；
+ *  2）每个叶子任务用内存映射（MappedByteBuffer）读取一个块，直接在字节上切分单词并计算哈希，
+ *     只有第一次出现的单词才会把字节拷贝到计数表中，不会为每个单词创建 String；
+ *  3）每个叶子任务一张开放寻址的计数表（WordCounter），作为任务的结果返回，不依赖工作线程的 ThreadLocal，
+ *     任务结束后计数表就可以被回收；
+ *  4）分治任务合并两个子任务的结果时，把较小的计数表原地合并到较大的那张表中。
+ *
+ * 单词的定义与 MapReduce.calc 的 split("\\s+") 一致：以空白字符（空格、\t、\n、\x0B、\f、\r）分隔，按 UTF-8 字节比较。
+ */
+public class _15_MappedWordCount {
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("word-count-", ".txt");
+        file.deleteOnExit();
+        generate(file, 200L * 1024 * 1024);
+        System.out.println("文件大小：" + file.length() / 1024 / 1024 + " MB");
+
+        // 逐行读取 + split + HashMap
+        long start = System.nanoTime();
+        Map<String, Long> expected = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String word : line.split("\\s+")) {
+                    if (!word.isEmpty()) {
+                        expected.merge(word, 1L, Long::sum);
+                    }
+                }
+            }
+        }
+        report("readLine + split", file, start);
+
+        // 内存映射 + 分块并行
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        start = System.nanoTime();
+        WordCounter counter = MappedWordCount.count(file, 16 * 1024 * 1024, pool);
+        report("mapped chunks", file, start);
+
+        Map<String, Long> actual = counter.toMap();
+        System.out.println("不同单词数：" + actual.size() + "，结果一致：" + expected.equals(actual));
+    }
+
+    private static void report(String name, File file, long start) {
+        long cost = System.nanoTime() - start;
+        System.out.printf("%-16s %6d ms  %6.0f MB/s%n", name, cost / 1_000_000,
+                file.length() / 1024.0 / 1024 / (cost / 1e9));
+    }
+
+    // 生成由 5 万个单词组成的随机文本
+    private static void generate(File file, long size) throws IOException {
+        Random random = new Random(1);
+        String[] vocabulary = new String[50_000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = (i % 10 == 0 ? "对账" : "word") + Integer.toString(i, 36);
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            long written = 0;
+            while (written < size) {
+                int words = 1 + random.nextInt(12);
+                for (int i = 0; i < words; i++) {
+                    // 近似 Zipf 分布：小下标的单词出现得更频繁
+                    String word = vocabulary[(int) (vocabulary.length * Math.pow(random.nextDouble(), 3))];
+                    if (i > 0) {
+                        writer.write(random.nextInt(8) == 0 ? "  " : " ");
+                    }
+                    writer.write(word);
+                    written += word.length() + 1;
+                }
+                writer.write('\n');
+            }
+        }
+    }
+}
+
+/**
+ * 内存映射的分块单词统计
+ */
+class MappedWordCount {
+    // 单次内存映射的上限是 2GB，块大小不能超过这个值
+    private static final int MAX_CHUNK = Integer.MAX_VALUE - 1024 * 1024;
+
+    public static WordCounter count(File file, int chunkSize, ForkJoinPool pool) throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK) {
+            throw new IllegalArgumentException("chunkSize out of range: " + chunkSize);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long[] bounds = split(channel, chunkSize);
+            return pool.invoke(new ChunkTask(channel, bounds, 0, bounds.length - 1));
+        }
+    }
+
+    // 与 \s 相同的空白字符
+    static boolean isDelimiter(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0B || b == '\f';
+    }
+
+    // 按 chunkSize 切分，每个边界向后移动到下一个空白字符之后；返回的数组中相邻两个值构成一个块 [bounds[i], bounds[i+1])
+    // 每个块（包括最后一个块）都不超过 MAX_CHUNK，一个单词本身超过 MAX_CHUNK 时无法切分，抛出 IOException
+    static long[] split(FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = 0;
+        while (pos + chunkSize < size) {
+            long next = pos + chunkSize;
+            // 找到 next 之后的第一个空白字符
+            boolean found = false;
+            while (!found && next < size) {
+                probe.clear();
+                int n = channel.read(probe, next);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (isDelimiter(probe.get(i))) {
+                        next += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    next += n;
+                }
+            }
+            if (next - pos > MAX_CHUNK) {
+                throw new IOException("word at offset " + pos + " is longer than the max chunk size");
+            }
+            if (next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * 分治任务：二分块的下标范围 [from, to)，叶子任务处理一个块，返回该范围内的计数表
+     */
+    static class ChunkTask extends RecursiveTask<WordCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected WordCounter compute() {
+            if (to - from <= 1) {
+                return to > from ? countChunk(bounds[from], bounds[to]) : new WordCounter(16);
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask right = new ChunkTask(channel, bounds, mid, to);
+            right.fork();
+            WordCounter left = new ChunkTask(channel, bounds, from, mid).compute();
+            WordCounter other = right.join();
+            // 把较小的表合并到较大的表中
+            if (left.size() < other.size()) {
+                other.addAll(left);
+                return other;
+            }
+            left.addAll(other);
+            return left;
+        }
+
+        private WordCounter countChunk(long start, long end) {
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            WordCounter counter = new WordCounter(1024);
+            // 映射内存按 64KB 的窗口批量拷贝出来再扫描，避免逐字节 get() 的边界检查；单词可以跨越窗口
+            byte[] window = new byte[64 * 1024];
+            byte[] word = new byte[64];
+            int len = 0;
+            int hash = 0;
+            while (buffer.hasRemaining()) {
+                int n = Math.min(window.length, buffer.remaining());
+                buffer.get(window, 0, n);
+                for (int i = 0; i < n; i++) {
+                    byte b = window[i];
+                    if (isDelimiter(b)) {
+                        if (len > 0) {
+                            counter.add(word, 0, len, hash, 1);
+                            len = 0;
+                            hash = 0;
+                        }
+                    } else {
+                        if (len == word.length) {
+                            word = Arrays.copyOf(word, len * 2);
+                        }
+                        word[len++] = b;
+                        hash = hash * 31 + b;
+                    }
+                }
+            }
+            if (len > 0) {
+                counter.add(word, 0, len, hash, 1);
+            }
+            return counter;
+        }
+    }
+}
+
+/**
+ * 以字节序列为键的开放寻址（线性探测）计数表
+ *  - 键的字节连续地存放在 arena 中，槽位中只保存键的偏移量、长度、哈希值和计数，没有对象分配；
+ *  - 合并时直接使用保存的哈希值，不需要重新计算。
+ * Object2IntMap 的键必须是对象，查找一个单词之前就要先创建 String，所以这里单独实现，
+ * 探测方式和容量计算与 common 中的哈希表相同（HashTables）。
+ */
+class WordCounter {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] offsets;
+    private int[] lengths;
+    private int[] hashes;
+    private long[] counts;
+    private int mask;
+    private int size;
+    private int maxFill;
+    private byte[] arena = new byte[1 << 16];
+    private int arenaSize;
+
+    WordCounter(int expected) {
+        allocate(HashTables.capacity(expected, LOAD_FACTOR));
+    }
+
+    private void allocate(int capacity) {
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        // 长度为 0 表示空槽位
+        mask = capacity - 1;
+        maxFill = HashTables.maxFill(capacity, LOAD_FACTOR);
+    }
+
+    // 单词 bytes[off, off+len) 的计数增加 delta，hash 为调用方计算好的哈希值（h = h * 31 + b）
+    public void add(byte[] bytes, int off, int len, int hash, long delta) {
+        int slot = HashTables.mix(hash) & mask;
+        while (true) {
+            int l = lengths[slot];
+            if (l == 0) {
+                insert(slot, bytes, off, len, hash, delta);
+                return;
+            }
+            if (hashes[slot] == hash && l == len && equals(offsets[slot], bytes, off, len)) {
+                counts[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // 把另一张计数表原地累加到当前表中
+    public void addAll(WordCounter other) {
+        for (int i = 0; i < other.lengths.length; i++) {
+            if (other.lengths[i] != 0) {
+                add(other.arena, other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 解码为 String，只在输出结果时使用
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new HashMap<>(size * 2);
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] != 0) {
+                map.put(new String(arena, offsets[i], lengths[i], StandardCharsets.UTF_8), counts[i]);
+            }
+        }
+        return map;
+    }
+
+    private void insert(int slot, byte[] bytes, int off, int len, int hash, long delta) {
+        if (arenaSize + len > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + len));
+        }
+        System.arraycopy(bytes, off, arena, arenaSize, len);
+        offsets[slot] = arenaSize;
+        lengths[slot] = len;
+        hashes[slot] = hash;
+        counts[slot] = delta;
+        arenaSize += len;
+        // 负载因子超过 LOAD_FACTOR 时扩容
+        if (++size > maxFill) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        int[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        int[] oldHashes = hashes;
+        long[] oldCounts = counts;
+        allocate(oldLengths.length * 2);
+        for (int i = 0; i < oldLengths.length; i++) {
+            if (oldLengths[i] != 0) {
+                int slot = HashTables.mix(oldHashes[i]) & mask;
+                while (lengths[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                offsets[slot] = oldOffsets[i];
+                lengths[slot] = oldLengths[i];
+                hashes[slot] = oldHashes[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private boolean equals(int arenaOffset, byte[] bytes, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (arena[arenaOffset + i] != bytes[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.Object2IntMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * 可复用的分治任务基类：顺序阈值、原地合并、子问题记忆化
+ *
+ * 问题：
+ *  - _13_ForkJoinMapReduce 中的 Fibonacci 和 MapReduce 都一直拆分到规模为 1 的叶子任务，
+ *    Fibonacci(n) 会创建指数级数量的任务，任务调度的开销远远超过计算本身；
+ *  - MapReduce.merge 每一层都新建一个 map，把两个子结果都拷贝进去。
+ *
+ * 方案：DivideAndConquerTask
+ *  1）顺序阈值：问题规模不超过 threshold 时不再拆分，直接顺序计算；
+ *  2）自动阈值（threshold = AUTO）：当前工作线程的队列中积压的任务（getSurplusQueuedTaskCount）
+ *     超过 SURPLUS 个时，说明其他线程没有空闲来窃取，已经拆分出的任务足够让所有线程忙碌，于是不再拆分。
+ *     这个启发式不依赖于具体的问题规模和机器的核数；
+ *  3）结果容器是可变的，combine 时把小的一方合并到大的一方中，不再分配新的容器；
+ *  4）可选的记忆化：相同的子问题（memoKey 相同）只计算一次，结果在所有工作线程之间共享。
+ *
+ * DivideAndConquerTask 还被 _17_ParallelReducer 使用，实现放在 DivideAndConquerTask.java 中。
+ *
+ * 由于编译环境中没有 JMH，这里用 main 方法中的基准测试代替：每个配置先预热，再取多次运行的中位数，
+ * 输出不同线程数下的耗时和相对单线程的加速比。
+ */
+public class _16_DivideAndConquer {
+    public static void main(String[] args) {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        List<Integer> threads = new ArrayList<>();
+        for (int t = 1; t < maxThreads; t *= 2) {
+            threads.add(t);
+        }
+        threads.add(maxThreads);
+
+        int n = 30;
+        System.out.println("== Fibonacci(" + n + ") ==");
+        bench("fork to leaves", threads, () -> (long) new Fibonacci(n).compute());
+        bench("threshold=20", threads, () -> new FibonacciTask(n, 20, null).compute());
+        bench("auto threshold", threads, () -> new FibonacciTask(n, DivideAndConquerTask.AUTO, null).compute());
+        bench("memoised", threads,
+                () -> new FibonacciTask(n, DivideAndConquerTask.AUTO, new ConcurrentHashMap<>()).compute());
+
+        String[] lines = lines(200_000);
+        System.out.println("== word count (" + lines.length + " lines) ==");
+        bench("fork to leaves", threads,
+                () -> new _13_ForkJoinMapReduce.MapReduce(lines, 0, lines.length).compute());
+        bench("auto threshold", threads,
+                () -> new WordCountTask(lines, 0, lines.length, DivideAndConquerTask.AUTO).compute());
+    }
+
+    // 在每个线程数下运行 task，输出耗时中位数和加速比
+    private static void bench(String name, List<Integer> threads, Supplier<Object> task) {
+        long base = 0;
+        Object expected = null;
+        StringBuilder sb = new StringBuilder(String.format("%-16s", name));
+        for (int t : threads) {
+            ForkJoinPool pool = new ForkJoinPool(t);
+            // 预热
+            for (int i = 0; i < 3; i++) {
+                pool.invoke(new SupplierTask(task));
+            }
+            long[] costs = new long[5];
+            for (int i = 0; i < costs.length; i++) {
+                long start = System.nanoTime();
+                Object result = pool.invoke(new SupplierTask(task));
+                costs[i] = System.nanoTime() - start;
+                if (expected == null) {
+                    expected = result;
+                } else if (!expected.equals(result)) {
+                    throw new IllegalStateException("inconsistent result");
+                }
+            }
+            pool.shutdown();
+            Arrays.sort(costs);
+            long median = costs[costs.length / 2];
+            if (base == 0) {
+                base = median;
+            }
+            sb.append(String.format("  %2d threads: %7.2f ms (x%.2f)", t, median / 1e6, (double) base / median));
+        }
+        System.out.println(sb);
+    }
+
+    private static String[] lines(int count) {
+        Random random = new Random(1);
+        String[] lines = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            int words = 1 + random.nextInt(10);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                sb.append("w").append(random.nextInt(5000));
+            }
+            lines[i] = sb.toString();
+        }
+        return lines;
+    }
+
+    // 在线程池中执行 Supplier，使其中的 compute() 调用运行在工作线程上
+    private static class SupplierTask extends RecursiveTask<Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final Supplier<Object> supplier;
+
+        SupplierTask(Supplier<Object> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        protected Object compute() {
+            return supplier.get();
+        }
+    }
+}
+
+/**
+ * 带顺序阈值的斐波那契数列
+ */
+class FibonacciTask extends DivideAndConquerTask<Long> {
+    private static final long serialVersionUID = 1L;
+
+    private final int n;
+
+    FibonacciTask(int n, int threshold, Map<Object, Long> memo) {
+        super(threshold, memo);
+        this.n = n;
+    }
+
+    @Override
+    protected int size() {
+        return n;
+    }
+
+    @Override
+    protected Long computeSequentially() {
+        return memo == null ? fib(n) : fibMemo(n);
+    }
+
+    @Override
+    protected List<FibonacciTask> split() {
+        List<FibonacciTask> tasks = new ArrayList<>(2);
+        tasks.add(new FibonacciTask(n - 1, threshold, memo));
+        tasks.add(new FibonacciTask(n - 2, threshold, memo));
+        return tasks;
+    }
+
+    @Override
+    protected Long combine(Long left, Long right) {
+        return left + right;
+    }
+
+    @Override
+    protected Object memoKey() {
+        return n;
+    }
+
+    private static long fib(int n) {
+        return n <= 1 ? n : fib(n - 1) + fib(n - 2);
+    }
+
+    // 顺序计算时也使用共享的缓存
+    private long fibMemo(int n) {
+        if (n <= 1) {
+            return n;
+        }
+        Long cached = memo.get(n);
+        if (cached != null) {
+            return cached;
+        }
+        long result = fibMemo(n - 1) + fibMemo(n - 2);
+        memo.put(n, result);
+        return result;
+    }
+}
+
+/**
+ * 带顺序阈值的单词统计：叶子任务一次统计多行，合并时把小的 map 合并到大的 map 中
+ */
+class WordCountTask extends DivideAndConquerTask<Object2IntMap<String>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] lines;
+    private final int start;
+    private final int end;
+
+    WordCountTask(String[] lines, int start, int end, int threshold) {
+        super(threshold, null);
+        this.lines = lines;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected int size() {
+        return end - start;
+    }
+
+    @Override
+    protected Object2IntMap<String> computeSequentially() {
+        Object2IntMap<String> map = new Object2IntMap<>();
+        for (int i = start; i < end; i++) {
+            for (String word : lines[i].split("\\s+")) {
+                map.addTo(word, 1);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    protected List<WordCountTask> split() {
+        int mid = (start + end) >>> 1;
+        List<WordCountTask> tasks = new ArrayList<>(2);
+        tasks.add(new WordCountTask(lines, start, mid, threshold));
+        tasks.add(new WordCountTask(lines, mid, end, threshold));
+        return tasks;
+    }
+
+    @Override
+    protected Object2IntMap<String> combine(Object2IntMap<String> left, Object2IntMap<String> right) {
+        Object2IntMap<String> larger = left.size() >= right.size() ? left : right;
+        larger.addAll(larger == left ? right : left);
+        return larger;
+    }
+}
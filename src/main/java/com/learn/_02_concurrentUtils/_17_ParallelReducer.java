@@ -0,0 +1,348 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.Int2IntMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleConsumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * 通用的并行归约框架（map / combine / reduce），_13_ForkJoinMapReduce 的泛化版本
+ *
+ * 问题：每一种统计都要手写一个 RecursiveTask，重复地实现拆分、叶子计算和合并。
+ *
+ * 方案：ParallelReducer<I, A, R>
+ *  - I：输入元素类型，数据源是 Spliterator（可以按需二分的迭代器），集合和数组都可以直接得到；
+ *  - A：可变的累加容器，每个叶子任务一个（supplier 创建，accumulator 逐个累加元素）；
+ *  - R：结果类型，所有叶子的累加容器沿着拆分树两两合并（combiner）后，由 finisher 转换得到。
+ *
+ * 拆分策略与 _16_DivideAndConquer 一致：剩余元素超过阈值，并且当前线程积压的任务不多时才继续拆分。
+ * 合并时保持 Spliterator 的前后顺序，所以 combiner 不要求满足交换律。
+ *
+ * 内置的归约：按键计数（int 键使用 Int2IntMap，不装箱）、Top-K、直方图、基数估算（HyperLogLog），
+ * 以及基本类型数组的 sum/min/max：longSummary(long[], pool) / doubleSummary(double[], pool)
+ * （叶子任务直接使用 LongConsumer/DoubleConsumer 遍历，不会装箱；只接受基本类型数组，不会被误用在对象集合上）。
+ */
+public class _17_ParallelReducer {
+    public static void main(String[] args) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        Random random = new Random(1);
+
+        // 1 基本类型数组的 sum/min/max
+        long[] values = new long[20_000_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1_000_000);
+        }
+        long start = System.nanoTime();
+        LongSummaryStatistics stats = ParallelReducer.longSummary(values, pool);
+        System.out.println("longSummary: " + stats + "，耗时 " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        // 2 对象集合上的各种统计：访问日志（用户 id，接口，耗时）
+        List<String[]> logs = new ArrayList<>();
+        String[] apis = {"/order", "/pay", "/cart", "/user", "/search"};
+        for (int i = 0; i < 2_000_000; i++) {
+            logs.add(new String[]{"u" + random.nextInt(300_000), apis[random.nextInt(apis.length)],
+                    String.valueOf((int) (Math.abs(random.nextGaussian()) * 100))});
+        }
+
+        Map<String, Long> byApi = ParallelReducer.<String[], String>countByKey(log -> log[1]).reduce(logs, pool);
+        System.out.println("countByKey: " + byApi);
+
+        Int2IntMap byLatency = ParallelReducer.<String[]>countByIntKey(log -> Integer.parseInt(log[2])).reduce(logs, pool);
+        System.out.println("countByIntKey: 不同耗时 " + byLatency.size() + " 个，耗时 0 ms 的请求 " + byLatency.get(0)
+                + " 个，耗时 100 ms 的请求 " + byLatency.get(100) + " 个");
+
+        List<String[]> slowest = ParallelReducer.<String[]>topK(3,
+                Comparator.comparingInt(log -> Integer.parseInt(log[2]))).reduce(logs, pool);
+        for (String[] log : slowest) {
+            System.out.println("topK: " + Arrays.toString(log));
+        }
+
+        long[] histogram = ParallelReducer.<String[]>histogram(log -> Double.parseDouble(log[2]), 0, 400, 8)
+                .reduce(logs, pool);
+        System.out.println("histogram: " + Arrays.toString(histogram));
+
+        start = System.nanoTime();
+        long estimate = ParallelReducer.<String[]>distinctCount(log -> log[0], 14).reduce(logs, pool);
+        long cost = System.nanoTime() - start;
+        HashSet<String> exact = new HashSet<>();
+        for (String[] log : logs) {
+            exact.add(log[0]);
+        }
+        System.out.printf("distinctCount: %d（精确值 %d，误差 %.2f%%），耗时 %d ms%n", estimate, exact.size(),
+                100.0 * Math.abs(estimate - exact.size()) / exact.size(), cost / 1_000_000);
+        pool.shutdown();
+    }
+}
+
+/**
+ * 并行归约：supplier 创建累加容器，accumulator 累加元素，combiner 合并两个容器，finisher 得到结果
+ */
+final class ParallelReducer<I, A, R> {
+    private final Supplier<A> supplier;
+    // 叶子任务：把 Spliterator 中剩余的元素全部累加到容器中
+    private final BiConsumer<A, Spliterator<I>> leaf;
+    private final BinaryOperator<A> combiner;
+    private final Function<A, R> finisher;
+    // 叶子任务的元素数量阈值，0 表示按照数据规模和并行度自动计算
+    private final long threshold;
+
+    private ParallelReducer(Supplier<A> supplier, BiConsumer<A, Spliterator<I>> leaf,
+                            BinaryOperator<A> combiner, Function<A, R> finisher, long threshold) {
+        this.supplier = supplier;
+        this.leaf = leaf;
+        this.combiner = combiner;
+        this.finisher = finisher;
+        this.threshold = threshold;
+    }
+
+    static <I, A, R> ParallelReducer<I, A, R> of(Supplier<A> supplier, BiConsumer<A, ? super I> accumulator,
+                                                  BinaryOperator<A> combiner, Function<A, R> finisher) {
+        return new ParallelReducer<>(supplier, (a, sp) -> sp.forEachRemaining(i -> accumulator.accept(a, i)),
+                combiner, finisher, 0);
+    }
+
+    ParallelReducer<I, A, R> withThreshold(long threshold) {
+        return new ParallelReducer<>(supplier, leaf, combiner, finisher, threshold);
+    }
+
+    public R reduce(Spliterator<I> source, ForkJoinPool pool) {
+        long t = threshold > 0 ? threshold
+                : Math.max(1, source.estimateSize() / (pool.getParallelism() * 4L));
+        return finisher.apply(pool.invoke(new ReduceTask<>(this, source, t)));
+    }
+
+    public R reduce(List<I> source, ForkJoinPool pool) {
+        return reduce(source.spliterator(), pool);
+    }
+
+    // ------------------------------------------------------------------
+    // 内置的归约
+    // ------------------------------------------------------------------
+
+    // 按键计数，合并时把小的 map 合并到大的 map 中
+    static <I, K> ParallelReducer<I, Map<K, Long>, Map<K, Long>> countByKey(Function<? super I, ? extends K> key) {
+        return of(HashMap::new, (map, i) -> map.merge(key.apply(i), 1L, Long::sum), (left, right) -> {
+            Map<K, Long> larger = left.size() >= right.size() ? left : right;
+            Map<K, Long> smaller = larger == left ? right : left;
+            smaller.forEach((k, v) -> larger.merge(k, v, Long::sum));
+            return larger;
+        }, Function.identity());
+    }
+
+    // 按 int 键计数，键和计数都存放在基本类型数组中，合并时把小的表合并到大的表中
+    static <I> ParallelReducer<I, Int2IntMap, Int2IntMap> countByIntKey(ToIntFunction<? super I> key) {
+        return of(Int2IntMap::new, (map, i) -> map.addTo(key.applyAsInt(i), 1), (left, right) -> {
+            Int2IntMap larger = left.size() >= right.size() ? left : right;
+            larger.addAll(larger == left ? right : left);
+            return larger;
+        }, Function.identity());
+    }
+
+    // 最大的 k 个元素（按照从大到小的顺序返回），每个叶子维护一个大小为 k 的小顶堆
+    static <I> ParallelReducer<I, PriorityQueue<I>, List<I>> topK(int k, Comparator<? super I> comparator) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        return of(() -> new PriorityQueue<I>(k + 1, comparator), (heap, i) -> offer(heap, i, k, comparator),
+                (left, right) -> {
+                    PriorityQueue<I> larger = left.size() >= right.size() ? left : right;
+                    PriorityQueue<I> smaller = larger == left ? right : left;
+                    for (I i : smaller) {
+                        offer(larger, i, k, comparator);
+                    }
+                    return larger;
+                }, heap -> {
+                    List<I> list = new ArrayList<>(heap);
+                    list.sort(Collections.reverseOrder(comparator));
+                    return list;
+                });
+    }
+
+    private static <I> void offer(PriorityQueue<I> heap, I item, int k, Comparator<? super I> comparator) {
+        if (heap.size() < k) {
+            heap.add(item);
+        } else if (comparator.compare(item, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+
+    // 等宽直方图：[min, max) 分为 buckets 个桶，结果的第一个和最后一个元素分别是小于 min 和不小于 max 的数量
+    static <I> ParallelReducer<I, long[], long[]> histogram(ToDoubleFunction<? super I> value,
+                                                           double min, double max, int buckets) {
+        double width = (max - min) / buckets;
+        return of(() -> new long[buckets + 2], (counts, i) -> {
+            double v = value.applyAsDouble(i);
+            int b = v < min ? 0 : v >= max ? buckets + 1 : 1 + Math.min(buckets - 1, (int) ((v - min) / width));
+            counts[b]++;
+        }, (left, right) -> {
+            for (int b = 0; b < left.length; b++) {
+                left[b] += right[b];
+            }
+            return left;
+        }, Function.identity());
+    }
+
+    // 基数估算，2^precision 个寄存器，标准误差约为 1.04 / sqrt(2^precision)
+    static <I> ParallelReducer<I, HyperLogLog, Long> distinctCount(Function<? super I, ?> key, int precision) {
+        return distinctCountByHash(i -> HyperLogLog.hash(key.apply(i).hashCode()), precision);
+    }
+
+    // 使用自定义的 64 位哈希函数做基数估算
+    static <I> ParallelReducer<I, HyperLogLog, Long> distinctCountByHash(ToLongFunction<? super I> hash64,
+                                                                         int precision) {
+        return of(() -> new HyperLogLog(precision), (hll, i) -> hll.add(hash64.applyAsLong(i)),
+                HyperLogLog::merge, HyperLogLog::estimate);
+    }
+
+    // long 数组的 count/sum/min/max/average
+    static LongSummaryStatistics longSummary(long[] values, ForkJoinPool pool) {
+        return LONG_SUMMARY.reduce(Arrays.spliterator(values), pool);
+    }
+
+    // double 数组的 count/sum/min/max/average
+    static DoubleSummaryStatistics doubleSummary(double[] values, ForkJoinPool pool) {
+        return DOUBLE_SUMMARY.reduce(Arrays.spliterator(values), pool);
+    }
+
+    // 只用于基本类型数组的 Spliterator.OfLong / OfDouble（trySplit() 拆出来的也是同样的类型），所以不对外公开
+    private static final ParallelReducer<Long, LongSummaryStatistics, LongSummaryStatistics> LONG_SUMMARY =
+            new ParallelReducer<>(LongSummaryStatistics::new,
+                    (stats, sp) -> ((Spliterator.OfLong) sp).forEachRemaining((LongConsumer) stats),
+                    (left, right) -> {
+                        left.combine(right);
+                        return left;
+                    }, Function.identity(), 0);
+
+    private static final ParallelReducer<Double, DoubleSummaryStatistics, DoubleSummaryStatistics> DOUBLE_SUMMARY =
+            new ParallelReducer<>(DoubleSummaryStatistics::new,
+                    (stats, sp) -> ((Spliterator.OfDouble) sp).forEachRemaining((DoubleConsumer) stats),
+                    (left, right) -> {
+                        left.combine(right);
+                        return left;
+                    }, Function.identity(), 0);
+
+    /**
+     * 归约任务：沿着 Spliterator 二分，叶子任务累加，按照前后顺序合并
+     */
+    private static final class ReduceTask<I, A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+
+        private final ParallelReducer<I, A, ?> reducer;
+        private final Spliterator<I> source;
+        private final long threshold;
+
+        ReduceTask(ParallelReducer<I, A, ?> reducer, Spliterator<I> source, long threshold) {
+            this.reducer = reducer;
+            this.source = source;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected A compute() {
+            // trySplit() 返回前半部分，当前任务继续处理后半部分
+            List<ReduceTask<I, A>> prefixes = new ArrayList<>();
+            Spliterator<I> rest = source;
+            Spliterator<I> prefix;
+            while (rest.estimateSize() > threshold
+                    && getSurplusQueuedTaskCount() <= DivideAndConquerTask.SURPLUS
+                    && (prefix = rest.trySplit()) != null) {
+                ReduceTask<I, A> task = new ReduceTask<>(reducer, prefix, threshold);
+                task.fork();
+                prefixes.add(task);
+            }
+            A result = reducer.supplier.get();
+            reducer.leaf.accept(result, rest);
+            // 最后拆分出来的前缀紧挨着 rest，从后往前依次合并，保持元素顺序
+            for (int i = prefixes.size() - 1; i >= 0; i--) {
+                result = reducer.combiner.apply(prefixes.get(i).join(), result);
+            }
+            return result;
+        }
+    }
+}
+
+/**
+ * HyperLogLog 基数估算
+ */
+final class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be in [4, 18]");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    // 把 32 位的 hashCode 打散为 64 位哈希值（MurmurHash3 的 fmix64）
+    static long hash(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // 剩余位中前导 0 的个数 + 1，补一个哨兵位避免全 0
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    HyperLogLog merge(HyperLogLog other) {
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // 小基数时使用线性计数修正
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,415 @@
+package com.learn._02_concurrentUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分散-聚合（scatter-gather）询价引擎，带对冲请求（hedged request）
+ *
+ * 问题：
+ *  - _12_CompletionService 和 _10_Future 中的 inquiry 手工地为 S1、S2、S3 各创建一个 Future，
+ *    整体耗时取决于最慢的那个电商，偶发的慢请求（长尾）直接决定了询价接口的尾延迟。
+ *
+ * 方案：
+ *  1）分散：同一个请求并行地发给 N 个后端（ScatterBackend）；
+ *  2）聚合：按照完成条件结束 —— 全部成功（all）、任意 K 个成功（firstK）、多数成功（quorum）；
+ *     剩余的后端不可能再满足条件时立即结束，不用等到超时；
+ *  3）对冲：每个后端可以有多个副本，首个请求在该后端最近延迟的 p95 之后还没有返回时，
+ *     再向下一个副本发送同样的请求，谁先返回用谁；某个副本失败时立即切换到下一个副本；
+ *  4）结束时取消所有还在执行的请求（Future.cancel(true)），包括对冲中的失败者；
+ *  5）整个请求有一个总的截止时间，超时后返回已经拿到的部分结果，并标记为超时。
+ *
+ * 对冲只在 p95 之后才会发出，所以额外的请求量大约只有 5%，换来的是尾延迟的大幅下降。
+ */
+public class _18_ScatterGather {
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ScatterGather engine = new ScatterGather(executor, scheduler);
+
+        for (boolean hedge : new boolean[]{false, true}) {
+            // 三个电商，每个电商两个副本
+            List<ScatterBackend<String, Integer>> suppliers = Arrays.asList(
+                    supplier("S1", 100, hedge), supplier("S2", 200, hedge), supplier("S3", 300, hedge));
+            long[] costs = new long[200];
+            int hedges = 0;
+            for (int i = 0; i < costs.length; i++) {
+                long start = System.nanoTime();
+                GatherResult<Integer> result = engine.all("product-" + i, suppliers, 1, TimeUnit.SECONDS).get();
+                costs[i] = System.nanoTime() - start;
+                hedges += result.hedges;
+                if (!result.satisfied) {
+                    System.out.println("inquiry failed: " + result);
+                }
+            }
+            Arrays.sort(costs);
+            System.out.printf("hedge=%-5s p50=%3d ms  p95=%3d ms  p99=%3d ms  max=%3d ms  hedges=%d%n", hedge,
+                    costs[costs.length / 2] / 1_000_000, costs[costs.length * 95 / 100] / 1_000_000,
+                    costs[costs.length * 99 / 100] / 1_000_000, costs[costs.length - 1] / 1_000_000, hedges);
+        }
+
+        // 任意 2 个电商返回即可 / 多数电商返回即可
+        List<ScatterBackend<String, Integer>> suppliers = Arrays.asList(
+                supplier("S1", 100, true), supplier("S2", 200, true), supplier("S3", 300, true));
+        System.out.println("firstK(2): " + engine.firstK("product", suppliers, 2, 1, TimeUnit.SECONDS).get());
+        System.out.println("quorum:    " + engine.quorum("product", suppliers, 1, TimeUnit.SECONDS).get());
+
+        executor.shutdown();
+        scheduler.shutdown();
+    }
+
+    // 模拟电商询价接口：通常 20~30ms，5% 的请求需要 300ms
+    private static ScatterBackend<String, Integer> supplier(String name, int price, boolean hedge) {
+        ScatterBackend.Call<String, Integer> call = product -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long latency = random.nextInt(100) < 5 ? 300 : 20 + random.nextInt(10);
+            TimeUnit.MILLISECONDS.sleep(latency);
+            return price;
+        };
+        List<ScatterBackend.Call<String, Integer>> replicas = hedge ? Arrays.asList(call, call)
+                : Collections.singletonList(call);
+        return new ScatterBackend<>(name, replicas, TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
+
+/**
+ * 一个后端：多个可以互相替代的副本，以及该后端最近的延迟统计
+ */
+final class ScatterBackend<Q, R> {
+    interface Call<Q, R> {
+        R call(Q request) throws Exception;
+    }
+
+    final String name;
+    final List<Call<Q, R>> replicas;
+    // 延迟样本不足时使用的对冲延迟
+    private final long initialHedgeNanos;
+    private final LatencyWindow latency = new LatencyWindow(256);
+
+    ScatterBackend(String name, List<Call<Q, R>> replicas, long initialHedgeNanos) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("at least one replica required");
+        }
+        this.name = name;
+        this.replicas = new ArrayList<>(replicas);
+        this.initialHedgeNanos = initialHedgeNanos;
+    }
+
+    // 对冲延迟：最近延迟的 p95
+    long hedgeDelayNanos() {
+        long p95 = latency.p95();
+        return p95 > 0 ? p95 : initialHedgeNanos;
+    }
+
+    void record(long nanos) {
+        latency.record(nanos);
+    }
+}
+
+/**
+ * 最近 size 个延迟样本的滑动窗口，每 16 个样本重新计算一次 p95
+ */
+final class LatencyWindow {
+    private static final int MIN_SAMPLES = 20;
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    private volatile long p95;
+
+    LatencyWindow(int size) {
+        this.samples = new AtomicLongArray(size);
+    }
+
+    void record(long nanos) {
+        long n = count.getAndIncrement();
+        samples.set((int) (n % samples.length()), nanos);
+        if (n + 1 >= MIN_SAMPLES && (n & 15) == 0) {
+            int filled = (int) Math.min(n + 1, samples.length());
+            long[] copy = new long[filled];
+            for (int i = 0; i < filled; i++) {
+                copy[i] = samples.get(i);
+            }
+            Arrays.sort(copy);
+            p95 = copy[(int) (filled * 0.95)];
+        }
+    }
+
+    // 样本不足时返回 0
+    long p95() {
+        return p95;
+    }
+}
+
+/**
+ * 分散-聚合的结果
+ */
+final class GatherResult<R> {
+    // 成功的结果，按照完成的先后顺序
+    final Map<String, R> values;
+    final Map<String, Throwable> failures;
+    // 是否满足了完成条件
+    final boolean satisfied;
+    final boolean timedOut;
+    // 发出的对冲请求数
+    final int hedges;
+
+    GatherResult(Map<String, R> values, Map<String, Throwable> failures,
+                 boolean satisfied, boolean timedOut, int hedges) {
+        this.values = values;
+        this.failures = failures;
+        this.satisfied = satisfied;
+        this.timedOut = timedOut;
+        this.hedges = hedges;
+    }
+
+    @Override
+    public String toString() {
+        return "GatherResult{" +
+                "values=" + values +
+                ", failures=" + failures.keySet() +
+                ", satisfied=" + satisfied +
+                ", timedOut=" + timedOut +
+                ", hedges=" + hedges +
+                '}';
+    }
+}
+
+/**
+ * 分散-聚合引擎，所有请求共享同一个线程池和定时器
+ */
+class ScatterGather {
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    ScatterGather(ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    // 所有后端都成功
+    public <Q, R> CompletableFuture<GatherResult<R>> all(Q request, List<ScatterBackend<Q, R>> backends,
+                                                          long timeout, TimeUnit unit) {
+        return scatter(request, backends, backends.size(), timeout, unit);
+    }
+
+    // 任意 k 个后端成功
+    public <Q, R> CompletableFuture<GatherResult<R>> firstK(Q request, List<ScatterBackend<Q, R>> backends, int k,
+                                                             long timeout, TimeUnit unit) {
+        return scatter(request, backends, k, timeout, unit);
+    }
+
+    // 多数后端成功
+    public <Q, R> CompletableFuture<GatherResult<R>> quorum(Q request, List<ScatterBackend<Q, R>> backends,
+                                                             long timeout, TimeUnit unit) {
+        return scatter(request, backends, backends.size() / 2 + 1, timeout, unit);
+    }
+
+    public <Q, R> CompletableFuture<GatherResult<R>> scatter(Q request, List<ScatterBackend<Q, R>> backends,
+                                                              int required, long timeout, TimeUnit unit) {
+        if (required <= 0 || required > backends.size()) {
+            throw new IllegalArgumentException("required must be in [1, " + backends.size() + "]");
+        }
+        Gather<Q, R> gather = new Gather<>(request, backends, required);
+        gather.start(timeout, unit);
+        return gather.promise;
+    }
+
+    /**
+     * 一次分散-聚合调用
+     */
+    private final class Gather<Q, R> {
+        final CompletableFuture<GatherResult<R>> promise = new CompletableFuture<>();
+        private final Q request;
+        private final int required;
+        private final List<BackendCall> calls = new ArrayList<>();
+        private final Map<String, R> values = new LinkedHashMap<>();
+        private final Map<String, Throwable> failures = new LinkedHashMap<>();
+        private final AtomicInteger hedges = new AtomicInteger();
+        private ScheduledFuture<?> deadline;
+        private boolean finished;
+
+        Gather(Q request, List<ScatterBackend<Q, R>> backends, int required) {
+            this.request = request;
+            this.required = required;
+            for (ScatterBackend<Q, R> backend : backends) {
+                calls.add(new BackendCall(backend));
+            }
+        }
+
+        void start(long timeout, TimeUnit unit) {
+            synchronized (this) {
+                deadline = scheduler.schedule(() -> finish(true), timeout, unit);
+            }
+            for (BackendCall call : calls) {
+                call.launch();
+            }
+        }
+
+        synchronized void onSuccess(BackendCall call, R value) {
+            if (finished) {
+                return;
+            }
+            values.put(call.backend.name, value);
+            if (values.size() >= required) {
+                finish(false);
+            }
+        }
+
+        synchronized void onFailure(BackendCall call, Throwable cause) {
+            if (finished) {
+                return;
+            }
+            failures.put(call.backend.name, cause);
+            // 剩余的后端全部成功也不够了，提前结束
+            if (calls.size() - failures.size() < required) {
+                finish(false);
+            }
+        }
+
+        private synchronized void finish(boolean timedOut) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            for (BackendCall call : calls) {
+                call.cancel();
+            }
+            promise.complete(new GatherResult<>(new LinkedHashMap<>(values), new LinkedHashMap<>(failures),
+                    values.size() >= required, timedOut, hedges.get()));
+        }
+
+        /**
+         * 对一个后端的调用：依次向各个副本发出请求（对冲或者失败切换），任意一个副本成功即结束
+         */
+        private final class BackendCall {
+            final ScatterBackend<Q, R> backend;
+            private final List<Future<?>> attempts = new ArrayList<>();
+            // 已经结束（成功或者失败）的尝试：其所在线程可能正在执行回调，取消时不能中断它
+            private final boolean[] ended;
+            private ScheduledFuture<?> hedgeTimer;
+            // 对冲定时器的代次：定时器被取消或者被新的定时器替换时加一，已经触发的旧定时器不再发起对冲
+            private int hedgeGeneration;
+            private int nextReplica;
+            private int failedAttempts;
+            private boolean done;
+
+            BackendCall(ScatterBackend<Q, R> backend) {
+                this.backend = backend;
+                this.ended = new boolean[backend.replicas.size()];
+            }
+
+            synchronized void launch() {
+                if (done || nextReplica >= backend.replicas.size()) {
+                    return;
+                }
+                int index = nextReplica++;
+                ScatterBackend.Call<Q, R> replica = backend.replicas.get(index);
+                long start = System.nanoTime();
+                attempts.add(executor.submit(() -> run(replica, index, start)));
+                if (nextReplica < backend.replicas.size()) {
+                    int generation = ++hedgeGeneration;
+                    hedgeTimer = scheduler.schedule(() -> hedge(generation),
+                            backend.hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+
+            // 对冲和失败切换在同一把锁下检查代次，已经被取消（但已触发）的定时器不会多发起一次请求
+            private synchronized void hedge(int generation) {
+                if (done || generation != hedgeGeneration) {
+                    return;
+                }
+                hedges.incrementAndGet();
+                launch();
+            }
+
+            private void cancelHedge() {
+                hedgeGeneration++;
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+            }
+
+            private void run(ScatterBackend.Call<Q, R> replica, int index, long start) {
+                R value;
+                try {
+                    value = replica.call(request);
+                } catch (Throwable e) {
+                    attemptFailed(index, e);
+                    return;
+                }
+                if (markDone(index)) {
+                    backend.record(System.nanoTime() - start);
+                    onSuccess(this, value);
+                }
+            }
+
+            // 第一个成功的副本胜出，取消其他副本（不中断胜出者自己，后续的回调还运行在这个线程上）
+            private synchronized boolean markDone(int winner) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                ended[winner] = true;
+                cancelAttempts();
+                return true;
+            }
+
+            private void attemptFailed(int index, Throwable cause) {
+                boolean allFailed;
+                synchronized (this) {
+                    ended[index] = true;
+                    if (done) {
+                        return;
+                    }
+                    failedAttempts++;
+                    if (nextReplica < backend.replicas.size()) {
+                        // 失败切换：立即尝试下一个副本，不用等对冲延迟
+                        cancelHedge();
+                        launch();
+                        return;
+                    }
+                    allFailed = failedAttempts == nextReplica;
+                    if (allFailed) {
+                        done = true;
+                    }
+                }
+                if (allFailed) {
+                    onFailure(this, cause);
+                }
+            }
+
+            synchronized void cancel() {
+                done = true;
+                cancelAttempts();
+            }
+
+            // 取消对冲定时器和还在执行的尝试；已经结束的尝试（例如胜出者，finish() 可能正运行在它的线程上）不中断
+            private void cancelAttempts() {
+                cancelHedge();
+                for (int i = 0; i < attempts.size(); i++) {
+                    if (!ended[i]) {
+                        attempts.get(i).cancel(true);
+                    }
+                }
+            }
+        }
+    }
+}
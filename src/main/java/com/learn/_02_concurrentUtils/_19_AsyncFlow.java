@@ -0,0 +1,398 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.CommTools;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 基于 CompletableFuture 的异步编排：舱壁隔离的线程池 + 超时 + 重试 + 上下文传递
+ *
+ * 问题：
+ *  - _11_CompletableFuture 和 BoilingWaterBrewTea 中的 supplyAsync() 都没有指定线程池，使用的是公共的 ForkJoinPool，
+ *    其中的 sleep（模拟阻塞 I/O）会占满公共线程池，导致同一个 JVM 中其他使用公共线程池的任务（包括并行流）饥饿；
+ *  - Java 8 的 CompletableFuture 没有 orTimeout() / completeOnTimeout()，也没有重试；
+ *  - 异步阶段在其他线程中执行，调用线程 MDC 中的 traceId 等上下文信息会丢失。
+ *
+ * 方案（AsyncFlow）：
+ *  1）舱壁（Bulkhead）：每个下游依赖一个命名的有界线程池，某个依赖变慢只会占满自己的线程池，
+ *     队列满时直接拒绝（future 以 RejectedExecutionException 异常完成），不会拖垮其他依赖；
+ *     supply() / run() 必须指定舱壁的名字，阻塞任务不会再落到公共的 ForkJoinPool 中；
+ *  2）超时：withTimeout() 用一个共享的定时线程在截止时间到达时以 TimeoutException 完成结果 future；
+ *  3）重试：retry() 每次尝试都有自己的超时，失败后按照指数退避（带抖动）的延迟重新提交，退避期间不占用任何线程；
+ *     超时的尝试如果还在舱壁队列中排队就不再执行（已经开始执行的任务无法被中断，只能等它自己结束），
+ *     调用方的 future 已经完成（例如 anyOf() 中其他 future 先成功、或者被取消）后不再发起新的尝试；
+ *  4）汇聚：allOf() 返回类型化的 List<T>，任意一个失败立即失败；anyOf() 返回第一个成功的结果，全部失败才失败；
+ *  5）上下文传递：提交任务时捕获调用线程的 MDC，在执行线程中恢复，执行完后还原执行线程原来的 MDC。
+ */
+public class _19_AsyncFlow {
+    public static void main(String[] args) {
+        AsyncFlow flow = new AsyncFlow()
+                .bulkhead("kettle", 1, 4)
+                .bulkhead("teaware", 2, 8)
+                .bulkhead("tea-shop", 2, 8);
+        try {
+            MDC.put("traceId", "tea-" + System.currentTimeMillis() % 10000);
+            long start = System.nanoTime();
+
+            // T1：洗水壶 -> 烧开水，烧水最多等待 1 秒
+            CompletableFuture<Void> f1 = AsyncFlow.withTimeout(flow.run("kettle", () -> {
+                trace("T1:洗水壶...");
+                CommTools.sleep(10, TimeUnit.MILLISECONDS);
+                trace("T1:烧开水...");
+                CommTools.sleep(150, TimeUnit.MILLISECONDS);
+            }), 1, TimeUnit.SECONDS);
+
+            // T2：洗茶壶、洗茶杯并行进行
+            CompletableFuture<List<String>> f2 = AsyncFlow.allOf(Arrays.asList(
+                    flow.supply("teaware", () -> {
+                        trace("T2:洗茶壶...");
+                        CommTools.sleep(10, TimeUnit.MILLISECONDS);
+                        return "茶壶";
+                    }),
+                    flow.supply("teaware", () -> {
+                        trace("T2:洗茶杯...");
+                        CommTools.sleep(20, TimeUnit.MILLISECONDS);
+                        return "茶杯";
+                    })));
+
+            // 拿茶叶：两家茶叶店谁先送到用谁；其中一家经常失败，每次最多等待 150 毫秒，最多尝试 4 次
+            RetryPolicy policy = new RetryPolicy(4, 10, 80, TimeUnit.MILLISECONDS);
+            AtomicInteger attempts = new AtomicInteger();
+            CompletableFuture<String> tea = AsyncFlow.anyOf(Arrays.asList(
+                    flow.retry("tea-shop", () -> {
+                        trace("拿茶叶:龙井（第 " + attempts.incrementAndGet() + " 次）...");
+                        if (ThreadLocalRandom.current().nextInt(3) != 0) {
+                            throw new IllegalStateException("龙井缺货");
+                        }
+                        CommTools.sleep(30, TimeUnit.MILLISECONDS);
+                        return "龙井";
+                    }, 150, TimeUnit.MILLISECONDS, policy),
+                    flow.retry("tea-shop", () -> {
+                        trace("拿茶叶:碧螺春...");
+                        CommTools.sleep(ThreadLocalRandom.current().nextInt(20, 100), TimeUnit.MILLISECONDS);
+                        return "碧螺春";
+                    }, 150, TimeUnit.MILLISECONDS, policy)));
+
+            // T3：泡茶，依赖 T1、T2 和茶叶
+            CompletableFuture<String> f3 = f1
+                    .thenCombine(f2, (__, ware) -> ware)
+                    .thenCombineAsync(tea, (ware, teaName) -> {
+                        trace("T3:用" + ware + "泡" + teaName + "...");
+                        return "上茶:" + teaName;
+                    }, flow.executor("teaware"));
+
+            System.out.println(f3.join() + "，耗时 " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            MDC.clear();
+            flow.shutdown();
+        }
+    }
+
+    // 打印时带上当前线程和 MDC 中的 traceId，用于观察上下文是否传递到了执行线程
+    private static void trace(String msg) {
+        System.out.println("[" + Thread.currentThread().getName() + "][traceId=" + MDC.get("traceId") + "] " + msg);
+    }
+}
+
+/**
+ * 异步编排工具：按名字管理舱壁线程池，并提供超时、重试和类型化的 allOf / anyOf
+ */
+final class AsyncFlow {
+    // 超时和重试退避共用的定时线程，只负责完成 future 或者重新提交任务，不执行业务逻辑
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "async-flow-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    /**
+     * 注册一个舱壁：threads 个线程，最多排队 queueCapacity 个任务
+     */
+    public AsyncFlow bulkhead(String name, int threads, int queueCapacity) {
+        if (bulkheads.putIfAbsent(name, new Bulkhead(name, threads, queueCapacity)) != null) {
+            throw new IllegalArgumentException("duplicate bulkhead: " + name);
+        }
+        return this;
+    }
+
+    /**
+     * 舱壁对应的执行器，可以传给 thenApplyAsync() 等方法，提交的任务同样会传递 MDC；
+     * 舱壁满时 execute() 抛出 RejectedExecutionException
+     */
+    public Executor executor(String name) {
+        Bulkhead bulkhead = bulkheads.get(name);
+        if (bulkhead == null) {
+            throw new IllegalArgumentException("unknown bulkhead: " + name);
+        }
+        return bulkhead;
+    }
+
+    /**
+     * 在 bulkhead 中执行 task；舱壁满时返回的 future 以 RejectedExecutionException 异常完成，不会抛出异常
+     */
+    public <T> CompletableFuture<T> supply(String bulkhead, Supplier<T> task) {
+        return submit(task, executor(bulkhead));
+    }
+
+    public CompletableFuture<Void> run(String bulkhead, Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        }, executor(bulkhead));
+    }
+
+    // supplyAsync() 在执行器拒绝任务时直接抛出异常，这里转换为异常完成的 future：
+    // 重试由定时线程发起，异常抛在定时线程中会被吞掉，调用方的 future 永远不会完成
+    private static <T> CompletableFuture<T> submit(Supplier<T> task, Executor executor) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * 在 bulkhead 中执行 task，每次尝试最多等待 attemptTimeout，失败后按照 policy 退避重试
+     */
+    public <T> CompletableFuture<T> retry(String bulkhead, Supplier<T> task,
+                                         long attemptTimeout, TimeUnit unit, RetryPolicy policy) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Executor executor = executor(bulkhead);
+        // 退避后由定时线程重新提交，需要带上调用线程的上下文
+        Map<String, String> context = MDC.getCopyOfContextMap();
+        attempt(executor, task, attemptTimeout, unit, policy, context, 1, result);
+        return result;
+    }
+
+    private <T> void attempt(Executor executor, Supplier<T> task, long attemptTimeout, TimeUnit unit,
+                             RetryPolicy policy, Map<String, String> context, int attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        // 在舱壁队列中排队期间调用方已经放弃时，不再执行
+        CompletableFuture<T> current = submit(() -> {
+            if (result.isDone()) {
+                throw new CancellationException("caller completed");
+            }
+            return task.get();
+        }, executor);
+        withTimeout(current, attemptTimeout, unit)
+                .whenComplete((value, e) -> {
+                    if (e == null) {
+                        result.complete(value);
+                        return;
+                    }
+                    Throwable cause = unwrap(e);
+                    if (cause instanceof TimeoutException) {
+                        // 还没开始执行的尝试不再执行，把舱壁的位置让出来
+                        current.cancel(false);
+                    }
+                    if (result.isDone()) {
+                        return;
+                    }
+                    if (attempt >= policy.maxAttempts || !policy.retryOn.test(cause)) {
+                        result.completeExceptionally(cause);
+                        return;
+                    }
+                    Runnable next = propagate(context,
+                            () -> attempt(executor, task, attemptTimeout, unit, policy, context, attempt + 1, result));
+                    TIMER.schedule(next, policy.backoffNanos(attempt), TimeUnit.NANOSECONDS);
+                });
+    }
+
+    /**
+     * Java 8 版本的 orTimeout()：future 在 timeout 内没有完成时，返回的 future 以 TimeoutException 异常完成
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        if (future.isDone()) {
+            return future;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMER.schedule(
+                () -> result.completeExceptionally(new TimeoutException("timeout after " + timeout + " " + unit)),
+                timeout, unit);
+        future.whenComplete((value, e) -> {
+            timer.cancel(false);
+            if (e == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(unwrap(e));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 全部成功时返回按顺序排列的结果；任意一个失败时立即以该异常完成，不再等待其他的 future
+     */
+    public static <T> CompletableFuture<List<T>> allOf(List<? extends CompletableFuture<? extends T>> futures) {
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+            if (e == null) {
+                List<T> values = new ArrayList<>(futures.size());
+                for (CompletableFuture<? extends T> future : futures) {
+                    values.add(future.join());
+                }
+                result.complete(values);
+            }
+        });
+        for (CompletableFuture<? extends T> future : futures) {
+            future.whenComplete((v, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(unwrap(e));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 返回第一个成功的结果；全部失败时以最后一个异常完成
+     */
+    public static <T> CompletableFuture<T> anyOf(List<? extends CompletableFuture<? extends T>> futures) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (futures.isEmpty()) {
+            result.completeExceptionally(new IllegalArgumentException("no futures"));
+            return result;
+        }
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<? extends T> future : futures) {
+            future.whenComplete((v, e) -> {
+                if (e == null) {
+                    result.complete(v);
+                } else if (failures.incrementAndGet() == futures.size()) {
+                    result.completeExceptionally(unwrap(e));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 捕获当前线程的 MDC，返回的 Runnable 在执行线程中恢复这份 MDC，执行完后还原执行线程原来的 MDC
+     */
+    static Runnable propagate(Runnable task) {
+        return propagate(MDC.getCopyOfContextMap(), task);
+    }
+
+    static Runnable propagate(Map<String, String> captured, Runnable task) {
+        return () -> {
+            Map<String, String> previous = MDC.getCopyOfContextMap();
+            setContext(captured);
+            try {
+                task.run();
+            } finally {
+                setContext(previous);
+            }
+        };
+    }
+
+    private static void setContext(Map<String, String> context) {
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+    }
+
+    static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    public void shutdown() {
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.pool.shutdown();
+        }
+    }
+
+    /**
+     * 舱壁：固定大小、有界队列的线程池，队列满时拒绝任务
+     */
+    private static final class Bulkhead implements Executor {
+        private final String name;
+        private final ThreadPoolExecutor pool;
+
+        Bulkhead(String name, int threads, int queueCapacity) {
+            this.name = name;
+            AtomicInteger seq = new AtomicInteger();
+            this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            try {
+                pool.execute(propagate(command));
+            } catch (RejectedExecutionException e) {
+                throw new RejectedExecutionException("bulkhead " + name + " is full", e);
+            }
+        }
+    }
+}
+
+/**
+ * 重试策略：最多尝试 maxAttempts 次，第 n 次失败后等待 min(maxBackoff, initialBackoff * 2^(n-1))，
+ * 并在 [delay/2, delay] 之间随机抖动，避免大量调用方同时重试
+ */
+final class RetryPolicy {
+    final int maxAttempts;
+    final long initialBackoffNanos;
+    final long maxBackoffNanos;
+    final Predicate<Throwable> retryOn;
+
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this(maxAttempts, initialBackoff, maxBackoff, unit, e -> true);
+    }
+
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit,
+                       Predicate<Throwable> retryOn) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+        this.retryOn = retryOn;
+    }
+
+    long backoffNanos(int attempt) {
+        long delay = initialBackoffNanos << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxBackoffNanos) {
+            delay = maxBackoffNanos;
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
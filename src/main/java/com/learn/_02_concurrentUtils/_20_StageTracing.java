@@ -0,0 +1,340 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.CommTools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * CompletableFuture 异步阶段的追踪和关键路径分析
+ *
+ * 问题：
+ *  - 像 BoilingWaterBrewTea 中 f1.thenCombine(f2, ...) 这样的异步流程，只能看到总耗时，
+ *    不知道是哪一条分支决定了端到端的延迟，也就不知道下一步应该并行化哪一段。
+ *
+ * 方案（StageTracer）：
+ *  1）用 TracedStage 包装 CompletableFuture，每个阶段都有名字，执行时记录开始/结束时间和执行线程；
+ *  2）创建阶段时记录它依赖的上游阶段，从而还原出整个依赖图（DAG）；
+ *  3）关键路径：从最终阶段开始反向回溯，AND 汇聚（thenCombine）选择最晚结束的上游，
+ *     OR 汇聚（applyToEither）选择最先结束的上游，串起来就是决定端到端延迟的那条路径；
+ *     关键路径之外的阶段有松弛时间（slack），缩短它们不会让整体变快；
+ *  4）导出 Chrome trace-event 格式的 JSON，可以在 chrome://tracing 或者 https://ui.perfetto.dev 中本地打开，
+ *     每个线程一行，阶段之间的依赖画成箭头。
+ */
+public class _20_StageTracing {
+    public static void main(String[] args) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        StageTracer tracer = new StageTracer();
+
+        // T1：洗水壶 -> 烧开水（1 分钟按 10 毫秒模拟）
+        TracedStage<Void> f1 = tracer.runAsync("洗水壶", () -> CommTools.sleep(10, TimeUnit.MILLISECONDS), executor)
+                .thenApplyAsync("烧开水", v -> {
+                    CommTools.sleep(150, TimeUnit.MILLISECONDS);
+                    return null;
+                }, executor);
+
+        // T2：洗茶壶 -> 洗茶杯 -> 拿茶叶
+        TracedStage<String> f2 = tracer.runAsync("洗茶壶", () -> CommTools.sleep(10, TimeUnit.MILLISECONDS), executor)
+                .thenApplyAsync("洗茶杯", v -> {
+                    CommTools.sleep(20, TimeUnit.MILLISECONDS);
+                    return null;
+                }, executor)
+                .thenApplyAsync("拿茶叶", v -> {
+                    CommTools.sleep(10, TimeUnit.MILLISECONDS);
+                    return "龙井";
+                }, executor);
+
+        // T3：泡茶
+        TracedStage<String> f3 = f1.thenCombine("泡茶", f2, (__, teaName) -> "上茶:" + teaName);
+        System.out.println(f3.join());
+
+        // 打印每个阶段的耗时和关键路径，并导出 Chrome trace 文件
+        System.out.print(tracer.report(f3));
+        Path file = Paths.get(System.getProperty("java.io.tmpdir"), "brew-tea-trace.json");
+        tracer.exportChromeTrace(file);
+        System.out.println("trace: " + file + "（在 chrome://tracing 或 https://ui.perfetto.dev 中打开）");
+
+        executor.shutdown();
+    }
+}
+
+/**
+ * 记录所有阶段的追踪信息，负责关键路径分析和导出
+ */
+final class StageTracer {
+    private final long origin = System.nanoTime();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Queue<TraceNode> nodes = new ConcurrentLinkedQueue<>();
+
+    public <T> TracedStage<T> supplyAsync(String name, Supplier<T> task, Executor executor) {
+        TraceNode node = node(name, false, Collections.emptyList());
+        return new TracedStage<>(this, node, CompletableFuture.supplyAsync(() -> node.record(task), executor));
+    }
+
+    public TracedStage<Void> runAsync(String name, Runnable task, Executor executor) {
+        return supplyAsync(name, () -> {
+            task.run();
+            return null;
+        }, executor);
+    }
+
+    TraceNode node(String name, boolean any, List<TraceNode> deps) {
+        TraceNode node = new TraceNode(ids.incrementAndGet(), name, any, deps);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * 从 sink 开始反向回溯得到的关键路径，按照执行顺序排列
+     */
+    public List<TraceNode> criticalPath(TracedStage<?> sink) {
+        List<TraceNode> path = new ArrayList<>();
+        for (TraceNode node = sink.node; node != null; node = node.criticalDep()) {
+            path.add(node);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * 文本报告：每个阶段的开始时间、耗时、执行线程，关键路径上的阶段标记为 *，其余阶段给出松弛时间
+     */
+    public String report(TracedStage<?> sink) {
+        List<TraceNode> path = criticalPath(sink);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-3s %-12s %10s %10s %10s  %s%n", "", "stage", "start(ms)", "cost(ms)", "slack(ms)", "thread"));
+        for (TraceNode node : sortedNodes()) {
+            boolean critical = path.contains(node);
+            sb.append(String.format("%-3s %-12s %10.1f %10.1f %10s  %s%n", critical ? "*" : "", node.name,
+                    millis(node.startNanos - origin), millis(node.endNanos - node.startNanos),
+                    critical ? "-" : String.format("%.1f", millis(slackNanos(node, path))), node.thread));
+        }
+        long busy = 0;
+        StringBuilder names = new StringBuilder();
+        for (TraceNode node : path) {
+            busy += node.endNanos - node.startNanos;
+            names.append(names.length() == 0 ? "" : " -> ").append(node.name);
+        }
+        long total = sink.node.endNanos - path.get(0).startNanos;
+        sb.append(String.format("critical path: %s%n", names));
+        sb.append(String.format("end-to-end %.1f ms = running %.1f ms + waiting %.1f ms%n",
+                millis(total), millis(busy), millis(total - busy)));
+        return sb.toString();
+    }
+
+    /**
+     * 导出 Chrome trace-event 格式（JSON Object Format）：
+     * 每个阶段一个完整事件（ph=X），每个线程一条名字元数据（ph=M），每条依赖一对流事件（ph=s / ph=f）
+     */
+    public void exportChromeTrace(Path file) throws IOException {
+        List<TraceNode> sorted = sortedNodes();
+        List<String> events = new ArrayList<>();
+        List<Long> threads = new ArrayList<>();
+        for (TraceNode node : sorted) {
+            if (!threads.contains(node.threadId)) {
+                threads.add(node.threadId);
+                events.add(String.format(Locale.ROOT, "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        node.threadId, escape(node.thread)));
+            }
+            StringBuilder deps = new StringBuilder();
+            for (TraceNode dep : node.deps) {
+                deps.append(deps.length() == 0 ? "" : ",").append('"').append(escape(dep.name)).append('"');
+            }
+            events.add(String.format(Locale.ROOT, "{\"name\":\"%s\",\"cat\":\"stage\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                            + "\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"id\":%d,\"deps\":[%s],\"join\":\"%s\"}}",
+                    escape(node.name), node.threadId, micros(node.startNanos - origin),
+                    micros(node.endNanos - node.startNanos), node.id, deps, node.any ? "any" : "all"));
+            for (TraceNode dep : node.deps) {
+                if (dep.endNanos == 0) {
+                    continue;
+                }
+                long flowId = (long) dep.id << 32 | node.id;
+                events.add(String.format(Locale.ROOT, "{\"name\":\"dep\",\"cat\":\"dep\",\"ph\":\"s\",\"id\":%d,\"pid\":1,\"tid\":%d,\"ts\":%.3f}",
+                        flowId, dep.threadId, micros(dep.endNanos - origin)));
+                events.add(String.format(Locale.ROOT, "{\"name\":\"dep\",\"cat\":\"dep\",\"ph\":\"f\",\"bp\":\"e\",\"id\":%d,\"pid\":1,\"tid\":%d,\"ts\":%.3f}",
+                        flowId, node.threadId, micros(node.startNanos - origin)));
+            }
+        }
+        String json = "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n" + String.join(",\n", events) + "\n]}\n";
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 已经执行完成的阶段，按照开始时间排序
+    private List<TraceNode> sortedNodes() {
+        List<TraceNode> sorted = new ArrayList<>();
+        for (TraceNode node : nodes) {
+            if (node.endNanos != 0) {
+                sorted.add(node);
+            }
+        }
+        sorted.sort((a, b) -> Long.compare(a.startNanos, b.startNanos));
+        return sorted;
+    }
+
+    // 非关键阶段最多还能推迟多久而不影响关键路径：下游真正等待的那个上游比它晚结束多久，再加上下游自己的松弛时间
+    private long slackNanos(TraceNode node, List<TraceNode> path) {
+        long slack = Long.MAX_VALUE;
+        for (TraceNode consumer : nodes) {
+            if (consumer.deps.contains(node) && consumer.endNanos != 0) {
+                TraceNode critical = consumer.criticalDep();
+                long s = (critical == node ? 0 : Math.max(0, critical.endNanos - node.endNanos)) + slackOf(consumer, path);
+                slack = Math.min(slack, s);
+            }
+        }
+        return slack == Long.MAX_VALUE ? 0 : slack;
+    }
+
+    private long slackOf(TraceNode node, List<TraceNode> path) {
+        return path.contains(node) ? 0 : slackNanos(node, path);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1_000.0;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * 依赖图中的一个阶段
+ */
+final class TraceNode {
+    final int id;
+    final String name;
+    // true 表示 OR 汇聚（任意一个上游完成即可执行），false 表示 AND 汇聚
+    final boolean any;
+    final List<TraceNode> deps;
+    volatile long startNanos;
+    volatile long endNanos;
+    volatile String thread;
+    volatile long threadId;
+
+    TraceNode(int id, String name, boolean any, List<TraceNode> deps) {
+        this.id = id;
+        this.name = name;
+        this.any = any;
+        this.deps = deps;
+    }
+
+    <T> T record(Supplier<T> task) {
+        Thread current = Thread.currentThread();
+        thread = current.getName();
+        threadId = current.getId();
+        startNanos = System.nanoTime();
+        try {
+            return task.get();
+        } finally {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 决定当前阶段何时可以开始的上游：AND 汇聚是最晚结束的上游，OR 汇聚是最先结束的上游
+     */
+    TraceNode criticalDep() {
+        TraceNode critical = null;
+        for (TraceNode dep : deps) {
+            if (dep.endNanos == 0) {
+                continue;
+            }
+            if (critical == null || (any ? dep.endNanos < critical.endNanos : dep.endNanos > critical.endNanos)) {
+                critical = dep;
+            }
+        }
+        return critical;
+    }
+
+    @Override
+    public String toString() {
+        return name + "#" + id;
+    }
+}
+
+/**
+ * 带追踪信息的 CompletableFuture，每个方法都需要给新阶段起一个名字
+ */
+final class TracedStage<T> {
+    private final StageTracer tracer;
+    final TraceNode node;
+    private final CompletableFuture<T> future;
+
+    TracedStage(StageTracer tracer, TraceNode node, CompletableFuture<T> future) {
+        this.tracer = tracer;
+        this.node = node;
+        this.future = future;
+    }
+
+    public <U> TracedStage<U> thenApply(String name, Function<? super T, ? extends U> fn) {
+        TraceNode next = tracer.node(name, false, Collections.singletonList(node));
+        return new TracedStage<>(tracer, next, future.thenApply(v -> next.record(() -> fn.apply(v))));
+    }
+
+    public <U> TracedStage<U> thenApplyAsync(String name, Function<? super T, ? extends U> fn, Executor executor) {
+        TraceNode next = tracer.node(name, false, Collections.singletonList(node));
+        return new TracedStage<>(tracer, next, future.thenApplyAsync(v -> next.record(() -> fn.apply(v)), executor));
+    }
+
+    public <U, V> TracedStage<V> thenCombine(String name, TracedStage<? extends U> other,
+                                             BiFunction<? super T, ? super U, ? extends V> fn) {
+        TraceNode next = tracer.node(name, false, Arrays.asList(node, other.node));
+        return new TracedStage<>(tracer, next,
+                future.thenCombine(other.future, (a, b) -> next.record(() -> fn.apply(a, b))));
+    }
+
+    public <U, V> TracedStage<V> thenCombineAsync(String name, TracedStage<? extends U> other,
+                                                  BiFunction<? super T, ? super U, ? extends V> fn, Executor executor) {
+        TraceNode next = tracer.node(name, false, Arrays.asList(node, other.node));
+        return new TracedStage<>(tracer, next,
+                future.thenCombineAsync(other.future, (a, b) -> next.record(() -> fn.apply(a, b)), executor));
+    }
+
+    public <U> TracedStage<U> applyToEither(String name, TracedStage<? extends T> other, Function<? super T, U> fn) {
+        TraceNode next = tracer.node(name, true, Arrays.asList(node, other.node));
+        return new TracedStage<>(tracer, next,
+                future.applyToEither(other.future, v -> next.record(() -> fn.apply(v))));
+    }
+
+    public CompletableFuture<T> toCompletableFuture() {
+        return future;
+    }
+
+    public T join() {
+        return future.join();
+    }
+}
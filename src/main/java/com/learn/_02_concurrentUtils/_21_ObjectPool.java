@@ -0,0 +1,505 @@
+package com.learn._02_concurrentUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 高性能对象池（连接、解析器实例等每个请求都要借还的对象）
+ *
+ * 问题：
+ *  - _03_Semaphore 中的 ObjPool 用 Semaphore 限流，但空闲对象放在 Vector 中，
+ *    每次借用都是 synchronized 的 remove(0)（O(n) 的数组移动），所有线程在同一把锁上排队；
+ *  - 对象一次性全部创建，不能超时借用，不会校验和回收空闲对象，借出后忘记归还也无从发现。
+ *
+ * 方案（ObjectPool）：
+ *  1）Semaphore 的许可数等于 max，拿到许可就保证一定有空闲对象或者还可以新建对象，可以超时借用；
+ *  2）空闲对象放在无锁的 ConcurrentLinkedDeque 中，按照栈（LIFO）使用，最近归还的对象最先被借出，缓存更热；
+ *     另外每个线程记住自己上次归还的对象，下次借用时先用 CAS 尝试直接拿回它，不竞争共享的空闲栈；
+ *  3）每个对象都有一个状态（IDLE / BORROWED / EVICTED），借用、归还、回收都通过 CAS 切换状态，
+ *     同一个对象即使同时出现在线程缓存和空闲栈中，也只会被一个线程借到；
+ *  4）最少 min、最多 max 个对象，不够时按需新建，后台任务把空闲超过 idleTimeout 的对象回收到 min 个；
+ *     空闲和借出的时长用后台任务每次运行时更新的粗粒度时钟计算（误差不超过一个 evictionInterval），借还的热路径上没有 System.nanoTime()；
+ *  5）借用时用 validator 校验复用的对象，不合格的直接销毁并继续借用；
+ *  6）泄漏检测：借出超过 leakThreshold 还没有归还的对象，打印借用线程当前的调用栈；
+ *     每次借用都记录调用栈（new Throwable()）的开销比借还本身大得多，所以只在排查问题时通过 captureBorrowStack 打开。
+ */
+public class _21_ObjectPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(_21_ObjectPool.class);
+
+    public static void main(String[] args) throws Exception {
+        int size = 5;
+        int threads = 8;
+        int perThread = 200_000;
+
+        // 对比 Semaphore + Vector 的 ObjPool
+        List<StringBuilder> objs = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            objs.add(new StringBuilder());
+        }
+        ObjPool<StringBuilder, Integer> objPool = new ObjPool<>(objs);
+        run("ObjPool", threads, () -> {
+            for (int i = 0; i < perThread; i++) {
+                objPool.exec(sb -> sb.append('x').length());
+            }
+        });
+
+        AtomicInteger created = new AtomicInteger();
+        ObjectPool<StringBuilder> pool = ObjectPool.builder(() -> {
+                    created.incrementAndGet();
+                    return new StringBuilder();
+                })
+                .min(1).max(size)
+                .validator(sb -> sb.length() < 1_000_000)
+                .idleTimeout(200, TimeUnit.MILLISECONDS)
+                .leakThreshold(100, TimeUnit.MILLISECONDS)
+                .evictionInterval(50, TimeUnit.MILLISECONDS)
+                .build();
+        run("ObjectPool", threads, () -> {
+            for (int i = 0; i < perThread; i++) {
+                pool.exec(sb -> sb.append('x').length(), 1, TimeUnit.SECONDS);
+            }
+        });
+        System.out.println("created=" + created + " " + pool);
+
+        // 借出后忘记归还：后台任务会打印泄漏警告和借用时的调用栈
+        ObjectPool.Lease<StringBuilder> leaked = pool.borrow(1, TimeUnit.SECONDS);
+        Thread.sleep(300);
+        System.out.println(pool);
+        leaked.close();
+
+        // 空闲超时后回收到 min 个
+        Thread.sleep(300);
+        System.out.println(pool);
+        pool.close();
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static void run(String name, int threads, Body body) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    body.run();
+                } catch (Exception e) {
+                    LOGGER.error("{} failed", name, e);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        System.out.printf("%-10s %d ms%n", name, (System.nanoTime() - start) / 1_000_000);
+    }
+}
+
+/**
+ * 基于 Semaphore + 无锁空闲栈 + 线程缓存的对象池
+ *
+ * @param <T> 对象池的对象类型
+ */
+class ObjectPool<T> implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObjectPool.class);
+
+    private static final int IDLE = 0;
+    private static final int BORROWED = 1;
+    private static final int EVICTED = 2;
+
+    private final Supplier<T> factory;
+    private final Predicate<? super T> validator;
+    private final Consumer<? super T> destroyer;
+    private final int min;
+    private final int max;
+    private final long idleTimeoutNanos;
+    private final long leakThresholdNanos;
+    private final boolean captureBorrowStack;
+
+    // 许可数 = max - 借出的对象数
+    private final Semaphore permits;
+    // 空闲栈：队头是最近归还的对象
+    private final ConcurrentLinkedDeque<Entry<T>> idle = new ConcurrentLinkedDeque<>();
+    // 所有存活的对象，只在新建和销毁时修改，用于回收和泄漏检测
+    private final CopyOnWriteArrayList<Entry<T>> all = new CopyOnWriteArrayList<>();
+    private final AtomicInteger total = new AtomicInteger();
+    // 每个线程上次归还的对象；用弱引用保存，被回收、校验失败或者池关闭后的对象不会被长期闲置的线程强引用住
+    private final ThreadLocal<WeakReference<Entry<T>>> lastReturned = new ThreadLocal<>();
+    private final ScheduledExecutorService maintainer;
+    private volatile boolean closed;
+    // 粗粒度的时钟，由后台任务每次运行时更新，借还时记录时间不需要调用 System.nanoTime()
+    private volatile long clock = System.nanoTime();
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder threadLocalHits = new LongAdder();
+    private final LongAdder creates = new LongAdder();
+    private final LongAdder destroys = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private ObjectPool(Builder<T> builder) {
+        this.factory = builder.factory;
+        this.validator = builder.validator;
+        this.destroyer = builder.destroyer;
+        this.min = builder.min;
+        this.max = builder.max;
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+        this.leakThresholdNanos = builder.leakThresholdNanos;
+        this.captureBorrowStack = builder.captureBorrowStack;
+        this.permits = new Semaphore(max);
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "object-pool-maintainer");
+            t.setDaemon(true);
+            return t;
+        });
+        maintainer.scheduleWithFixedDelay(this::maintain,
+                0, builder.evictionIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> factory) {
+        return new Builder<>(factory);
+    }
+
+    /**
+     * 借用一个对象，timeout 内借不到抛出 TimeoutException；用完后调用 Lease.close() 归还
+     */
+    public Lease<T> borrow(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (closed) {
+            throw new IllegalStateException("pool closed");
+        }
+        if (!permits.tryAcquire() && !permits.tryAcquire(timeout, unit)) {
+            timeouts.increment();
+            throw new TimeoutException("no object available within " + timeout + " " + unit);
+        }
+        try {
+            Entry<T> entry = take();
+            borrows.increment();
+            entry.borrowedAt = clock;
+            entry.borrower = Thread.currentThread();
+            entry.borrowStack = captureBorrowStack ? new Throwable("borrowed by " + entry.borrower.getName()) : null;
+            return new Lease<>(this, entry);
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 借用对象执行 func，执行完自动归还
+     */
+    public <R> R exec(Function<? super T, ? extends R> func, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        try (Lease<T> lease = borrow(timeout, unit)) {
+            return func.apply(lease.get());
+        }
+    }
+
+    // 已经拿到许可：一定有空闲对象，或者还可以新建对象
+    private Entry<T> take() {
+        WeakReference<Entry<T>> ref = lastReturned.get();
+        if (ref != null) {
+            Entry<T> cached = ref.get();
+            if (cached != null && cached.state.compareAndSet(IDLE, BORROWED) && validate(cached)) {
+                threadLocalHits.increment();
+                return cached;
+            }
+            // 没有命中（已经被其他线程借走、已经被回收或者校验失败），清掉缓存，不再引用它
+            lastReturned.remove();
+        }
+        while (true) {
+            Entry<T> entry = idle.pollFirst();
+            if (entry != null) {
+                entry.inStack.set(false);
+                if (entry.state.compareAndSet(IDLE, BORROWED) && validate(entry)) {
+                    return entry;
+                }
+                // 已经被其他线程从线程缓存中借走、已经被回收或者校验失败，继续找下一个
+                continue;
+            }
+            int n = total.get();
+            if (n < max && total.compareAndSet(n, n + 1)) {
+                return create(BORROWED);
+            }
+            // 对象正在归还的途中（状态已经是 IDLE，但还没有压回空闲栈），稍等一下再找
+            Thread.yield();
+        }
+    }
+
+    private Entry<T> create(int state) {
+        T obj;
+        try {
+            obj = factory.get();
+        } catch (RuntimeException | Error e) {
+            total.decrementAndGet();
+            throw e;
+        }
+        Entry<T> entry = new Entry<>(obj, state);
+        entry.lastUsed = clock;
+        all.add(entry);
+        creates.increment();
+        return entry;
+    }
+
+    // 校验失败的对象直接销毁，状态为 BORROWED，只有当前线程持有它
+    private boolean validate(Entry<T> entry) {
+        boolean valid;
+        try {
+            valid = validator.test(entry.obj);
+        } catch (RuntimeException e) {
+            valid = false;
+        }
+        if (!valid) {
+            entry.state.set(EVICTED);
+            destroy(entry);
+        }
+        return valid;
+    }
+
+    void release(Entry<T> entry) {
+        entry.borrower = null;
+        entry.borrowStack = null;
+        entry.lastUsed = clock;
+        if (!entry.state.compareAndSet(BORROWED, IDLE)) {
+            throw new IllegalStateException("object is not borrowed");
+        }
+        if (closed) {
+            lastReturned.remove();
+            if (entry.state.compareAndSet(IDLE, EVICTED)) {
+                destroy(entry);
+            }
+        } else {
+            WeakReference<Entry<T>> ref = lastReturned.get();
+            if (ref == null || ref.get() != entry) {
+                lastReturned.set(new WeakReference<>(entry));
+            }
+            // 已经在空闲栈中（之前是从线程缓存中借出的）就不再重复压栈
+            if (!entry.inStack.get() && entry.inStack.compareAndSet(false, true)) {
+                idle.offerFirst(entry);
+            }
+        }
+        permits.release();
+    }
+
+    private void destroy(Entry<T> entry) {
+        if (all.remove(entry)) {
+            total.decrementAndGet();
+            destroys.increment();
+            try {
+                destroyer.accept(entry.obj);
+            } catch (RuntimeException e) {
+                LOGGER.warn("failed to destroy {}", entry.obj, e);
+            }
+        }
+    }
+
+    // 后台任务：回收空闲超时的对象、补足 min 个对象、检测泄漏
+    private void maintain() {
+        try {
+            long now = System.nanoTime();
+            clock = now;
+            for (Entry<T> entry : all) {
+                int state = entry.state.get();
+                if (state == IDLE && idleTimeoutNanos > 0 && now - entry.lastUsed > idleTimeoutNanos
+                        && total.get() > min && entry.state.compareAndSet(IDLE, EVICTED)) {
+                    destroy(entry);
+                } else if (state == BORROWED && leakThresholdNanos > 0
+                        && now - entry.borrowedAt > leakThresholdNanos && !entry.leakReported) {
+                    Thread borrower = entry.borrower;
+                    if (borrower == null) {
+                        continue;
+                    }
+                    entry.leakReported = true;
+                    leaks.increment();
+                    Throwable where = entry.borrowStack;
+                    if (where == null) {
+                        where = new Throwable(borrower.getName() + " is now at");
+                        where.setStackTrace(borrower.getStackTrace());
+                    }
+                    LOGGER.warn("possible leak: object borrowed by {} {} ms ago and not returned", borrower.getName(),
+                            TimeUnit.NANOSECONDS.toMillis(now - entry.borrowedAt), where);
+                }
+            }
+            // 回收后栈中残留的 EVICTED 对象会在借用时跳过，这里顺便清理掉
+            idle.removeIf(e -> e.state.get() == EVICTED);
+            while (!closed) {
+                int n = total.get();
+                if (n >= min || !total.compareAndSet(n, n + 1)) {
+                    if (n >= min) {
+                        break;
+                    }
+                    continue;
+                }
+                Entry<T> entry = create(IDLE);
+                entry.inStack.set(true);
+                idle.offerLast(entry);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("pool maintenance failed", e);
+        }
+    }
+
+    /**
+     * 关闭对象池：销毁所有空闲对象，借出的对象在归还时销毁
+     */
+    @Override
+    public void close() {
+        closed = true;
+        maintainer.shutdownNow();
+        for (Entry<T> entry : all) {
+            if (entry.state.compareAndSet(IDLE, EVICTED)) {
+                destroy(entry);
+            }
+        }
+        idle.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectPool{" +
+                "total=" + total +
+                ", borrowed=" + (max - permits.availablePermits()) +
+                ", borrows=" + borrows +
+                ", threadLocalHits=" + threadLocalHits +
+                ", creates=" + creates +
+                ", destroys=" + destroys +
+                ", timeouts=" + timeouts +
+                ", leaks=" + leaks +
+                '}';
+    }
+
+    private static final class Entry<T> {
+        final T obj;
+        final AtomicInteger state;
+        // 是否在空闲栈中，避免同一个对象被重复压栈
+        final AtomicBoolean inStack = new AtomicBoolean();
+        volatile long lastUsed;
+        volatile long borrowedAt;
+        volatile Thread borrower;
+        volatile Throwable borrowStack;
+        volatile boolean leakReported;
+
+        Entry(T obj, int state) {
+            this.obj = obj;
+            this.state = new AtomicInteger(state);
+        }
+    }
+
+    /**
+     * 一次借用，close() 归还对象，重复归还抛出 IllegalStateException；Lease 只能在借用它的线程中使用
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final ObjectPool<T> pool;
+        private final Entry<T> entry;
+        private boolean returned;
+
+        private Lease(ObjectPool<T> pool, Entry<T> entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+
+        public T get() {
+            if (returned) {
+                throw new IllegalStateException("object already returned");
+            }
+            return entry.obj;
+        }
+
+        @Override
+        public void close() {
+            // 同一个对象归还后可能已经被其他线程借走，所以用 Lease 自己的标记防止重复归还
+            if (returned) {
+                throw new IllegalStateException("object already returned");
+            }
+            returned = true;
+            entry.leakReported = false;
+            pool.release(entry);
+        }
+    }
+
+    public static final class Builder<T> {
+        private final Supplier<T> factory;
+        private Predicate<? super T> validator = obj -> true;
+        private Consumer<? super T> destroyer = obj -> { };
+        private int min = 0;
+        private int max = 8;
+        private long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+        private long leakThresholdNanos = 0;
+        private boolean captureBorrowStack = false;
+        private long evictionIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+
+        private Builder(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        public Builder<T> min(int min) {
+            this.min = min;
+            return this;
+        }
+
+        public Builder<T> max(int max) {
+            this.max = max;
+            return this;
+        }
+
+        // 借用复用的对象前校验，不合格的对象会被销毁
+        public Builder<T> validator(Predicate<? super T> validator) {
+            this.validator = validator;
+            return this;
+        }
+
+        public Builder<T> destroyer(Consumer<? super T> destroyer) {
+            this.destroyer = destroyer;
+            return this;
+        }
+
+        // 空闲超过该时间的对象会被回收（保留 min 个），0 表示不回收
+        public Builder<T> idleTimeout(long timeout, TimeUnit unit) {
+            this.idleTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        // 借出超过该时间未归还时打印泄漏警告，0 表示不检测
+        public Builder<T> leakThreshold(long threshold, TimeUnit unit) {
+            this.leakThresholdNanos = unit.toNanos(threshold);
+            return this;
+        }
+
+        // 借用时记录调用栈，泄漏警告中打印借用的位置而不是借用线程当前的位置，开销较大
+        public Builder<T> captureBorrowStack(boolean capture) {
+            this.captureBorrowStack = capture;
+            return this;
+        }
+
+        public Builder<T> evictionInterval(long interval, TimeUnit unit) {
+            this.evictionIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public ObjectPool<T> build() {
+            if (min < 0 || max < 1 || min > max) {
+                throw new IllegalArgumentException("invalid size: min=" + min + ", max=" + max);
+            }
+            return new ObjectPool<>(this);
+        }
+    }
+}
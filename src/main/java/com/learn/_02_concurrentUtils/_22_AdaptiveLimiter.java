@@ -0,0 +1,372 @@
+package com.learn._02_concurrentUtils;
+
+import com.learn.common.CommTools;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * 自适应并发限流器（adaptive concurrency limit）
+ *
+ * 问题：
+ *  - _03_Semaphore 中的 Semaphore(n) 是固定的并发数，n 配大了保护不了下游，下游变慢时请求在下游排队，延迟越来越高；
+ *    n 配小了又浪费下游的处理能力，而且下游的处理能力本身是随时间变化的。
+ *
+ * 方案（AdaptiveLimiter）：
+ *  1）像 Semaphore 一样限制同时进行中的请求数（inflight），但许可数 limit 是动态的；
+ *  2）每个请求结束时报告结果：成功（带上 RTT）、被丢弃（下游超时、过载）或者忽略，由 LimitAlgorithm 调整 limit：
+ *     - AIMD：没有丢弃时每个往返加性增加（+1），发生丢弃时乘性减少（× 0.9），只能感知到丢弃；
+ *     - Vegas：用最小 RTT 估计无排队时的延迟，用 limit × (1 - minRtt / rtt) 估计下游的排队长度，
+ *       排队少时增加 limit，排队多时减少，在丢弃之前就能感知到排队；
+ *     - Gradient：比较无排队时的 RTT 和短期平均 RTT 的比值（梯度），梯度小于 1 说明下游开始排队，按比例缩小 limit，
+ *       再加上 sqrt(limit) 的排队余量，并做平滑，对 RTT 的偶发抖动不敏感；
+ *  3）inflight 达到 limit 时：acquire() 立即失败（fail fast），acquire(timeout) 排队等待，超过截止时间失败；
+ *  4）inflight 不到 limit 的一半时说明流量本身不大（app limited），这时的 RTT 不能说明下游还能承受更多并发，不增加 limit。
+ *
+ * 效果：下游过载时 limit 自动收缩到下游的处理能力附近，多出来的请求在本地快速失败，而不是在下游排队，延迟保持平稳。
+ */
+public class _22_AdaptiveLimiter {
+    public static void main(String[] args) throws InterruptedException {
+        // 下游：10 个工作线程（公平的 Semaphore 模拟 FIFO 的请求队列），每个请求处理 10ms，排队超过 50ms 就超时
+        // 上游：80 个线程不停地发送请求
+        // 固定的 Semaphore(80) 让请求在下游排队，p50 约 54ms 并且大量超时；
+        // 自适应的 limit 收缩到 10 左右，吞吐量不变，多出来的请求在本地快速失败，Gradient 的 p50 约 10ms
+        run("Semaphore(80)", () -> new AdaptiveLimiter(new FixedLimit(), 80, 80, 80));
+        run("AIMD", () -> new AdaptiveLimiter(new AimdLimit(0.9), 10, 1, 200));
+        run("Vegas", () -> new AdaptiveLimiter(new VegasLimit(), 10, 1, 200));
+        run("Gradient", () -> new AdaptiveLimiter(new GradientLimit(), 10, 1, 200));
+    }
+
+    private static void run(String name, Supplier<AdaptiveLimiter> factory) throws InterruptedException {
+        AdaptiveLimiter limiter = factory.get();
+        Semaphore downstream = new Semaphore(10, true);
+        int clients = 80;
+        long duration = TimeUnit.SECONDS.toNanos(2);
+        long[][] latencies = new long[clients][];
+        LongAdder ok = new LongAdder();
+        LongAdder dropped = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        CountDownLatch latch = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            int idx = i;
+            new Thread(() -> {
+                long[] samples = new long[10_000];
+                int n = 0;
+                try {
+                    while (System.nanoTime() - start < duration) {
+                        AdaptiveLimiter.Token token = limiter.acquire();
+                        if (token == null) {
+                            rejected.increment();
+                            // 被拒绝的请求会走降级逻辑，这里模拟降级处理的耗时
+                            CommTools.sleep(2, TimeUnit.MILLISECONDS);
+                            continue;
+                        }
+                        long begin = System.nanoTime();
+                        if (downstream.tryAcquire(50, TimeUnit.MILLISECONDS)) {
+                            try {
+                                CommTools.sleep(10, TimeUnit.MILLISECONDS);
+                            } finally {
+                                downstream.release();
+                            }
+                            token.onSuccess();
+                            ok.increment();
+                            if (n < samples.length) {
+                                samples[n++] = System.nanoTime() - begin;
+                            }
+                        } else {
+                            token.onDropped();
+                            dropped.increment();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latencies[idx] = Arrays.copyOf(samples, n);
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%-14s ok=%5d dropped=%5d rejected=%6d p50=%3d ms p99=%3d ms limit=%d%n", name,
+                ok.sum(), dropped.sum(), rejected.sum(),
+                all.length == 0 ? 0 : all[all.length / 2] / 1_000_000,
+                all.length == 0 ? 0 : all[all.length * 99 / 100] / 1_000_000, limiter.getLimit());
+    }
+}
+
+/**
+ * 根据每个请求的结果调整并发上限的算法，返回新的 limit 估计值，由 AdaptiveLimiter 限制在 [min, max] 之间。
+ * AdaptiveLimiter 保证对同一个算法实例的调用是串行的。
+ */
+interface LimitAlgorithm {
+    /**
+     * @param limit    当前的 limit
+     * @param rttNanos 请求的往返时间，dropped 为 true 时没有意义
+     * @param inflight 请求开始时进行中的请求数（包括它自己）
+     * @param dropped  请求是否被下游丢弃（超时、过载）
+     */
+    double update(double limit, long rttNanos, int inflight, boolean dropped);
+}
+
+/**
+ * 固定 limit，相当于 Semaphore(n)，用于对比
+ */
+class FixedLimit implements LimitAlgorithm {
+    @Override
+    public double update(double limit, long rttNanos, int inflight, boolean dropped) {
+        return limit;
+    }
+}
+
+/**
+ * 加性增、乘性减（Additive Increase Multiplicative Decrease）
+ */
+class AimdLimit implements LimitAlgorithm {
+    private final double backoffRatio;
+
+    AimdLimit(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    @Override
+    public double update(double limit, long rttNanos, int inflight, boolean dropped) {
+        if (dropped) {
+            return limit * backoffRatio;
+        }
+        // 每个往返（大约 limit 个请求）加 1；只有真正用到了一半以上的 limit，才说明下游能够承受更多的并发
+        if (inflight * 2 >= limit) {
+            return limit + 1 / limit;
+        }
+        return limit;
+    }
+}
+
+/**
+ * TCP Vegas 风格：用 RTT 的变化估计下游的排队长度
+ */
+class VegasLimit implements LimitAlgorithm {
+    // 每隔若干个请求重新探测一次无排队时的 RTT，避免下游变快或者变慢之后 minRtt 一直停留在旧值
+    private static final int PROBE_INTERVAL = 1000;
+
+    private long minRtt = Long.MAX_VALUE;
+    private int samples;
+
+    @Override
+    public double update(double limit, long rttNanos, int inflight, boolean dropped) {
+        double log = Math.max(1, Math.log10(limit));
+        if (dropped) {
+            return limit - log;
+        }
+        if (++samples >= PROBE_INTERVAL) {
+            samples = 0;
+            minRtt = rttNanos;
+            return limit;
+        }
+        minRtt = Math.min(minRtt, rttNanos);
+        if (inflight * 2 < limit) {
+            return limit;
+        }
+        // 下游排队的请求数估计
+        double queue = Math.ceil(limit * (1 - (double) minRtt / rttNanos));
+        double alpha = 3 * log;
+        double beta = 6 * log;
+        if (queue <= log) {
+            return limit + beta;
+        } else if (queue < alpha) {
+            return limit + log;
+        } else if (queue > beta) {
+            return limit - log;
+        }
+        return limit;
+    }
+}
+
+/**
+ * 梯度算法：
+ *  - 基线 minRtt 是最近一段时间内的最小 RTT，即下游没有排队时的延迟，每隔一段时间重新探测；
+ *  - shortRtt 是最近约 10 个请求 RTT 的指数平均，比单个样本更能抵抗抖动；
+ *  - gradient = minRtt / shortRtt，限制在 [0.5, 1] 之间，下游开始排队时 gradient 小于 1；
+ *  - 新 limit = limit × gradient + sqrt(limit)，sqrt(limit) 是允许下游排队的余量，再和旧 limit 做平滑。
+ * 稳定时 limit × (1 - gradient) ≈ sqrt(limit)，即下游的排队长度保持在 sqrt(limit) 左右。
+ *
+ * 注：Netflix 的 Gradient2 用 RTT 的长期平均作为基线，一开始就处于过载时，长期平均本身已经包含了排队时间，
+ * 基线会和 limit 一起被越抬越高（在上面的演示中 limit 会一直涨到客户端线程数的两倍），所以这里使用最小 RTT 作为基线。
+ */
+class GradientLimit implements LimitAlgorithm {
+    private static final int PROBE_INTERVAL = 1000;
+
+    private final double smoothing = 0.2;
+    private final int shortWindow = 10;
+    private long minRtt = Long.MAX_VALUE;
+    private double shortRtt;
+    private int samples;
+
+    @Override
+    public double update(double limit, long rttNanos, int inflight, boolean dropped) {
+        if (dropped) {
+            // 丢弃按照基线 RTT 的两倍计入，让 gradient 迅速下降
+            rttNanos = Math.max(rttNanos, minRtt == Long.MAX_VALUE ? rttNanos : minRtt * 2);
+        } else if (++samples >= PROBE_INTERVAL) {
+            samples = 0;
+            minRtt = rttNanos;
+        } else {
+            minRtt = Math.min(minRtt, rttNanos);
+        }
+        shortRtt = shortRtt == 0 ? rttNanos : shortRtt + (rttNanos - shortRtt) * 2 / (shortWindow + 1);
+        if (minRtt == Long.MAX_VALUE) {
+            return limit;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, minRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+        // 流量不大（app limited）时不增加 limit，但延迟上升时仍然要减少
+        if (inflight * 2 < limit && newLimit > limit) {
+            return limit;
+        }
+        return newLimit;
+    }
+}
+
+/**
+ * 动态许可数的并发限流器
+ */
+class AdaptiveLimiter {
+    private final LimitAlgorithm algorithm;
+    private final int minLimit;
+    private final int maxLimit;
+    // 算法给出的 limit 估计值，只在持有 algorithm 的锁时修改
+    private double estimate;
+    private volatile int limit;
+    private final AtomicInteger inflight = new AtomicInteger();
+    // 排队等待许可的线程
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    AdaptiveLimiter(LimitAlgorithm algorithm, int initialLimit, int minLimit, int maxLimit) {
+        this.algorithm = algorithm;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimate = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /**
+     * 达到 limit 时立即返回 null（fail fast）
+     */
+    public Token acquire() {
+        int current = tryIncrement();
+        return current < 0 ? null : new Token(current);
+    }
+
+    /**
+     * 达到 limit 时排队等待，超过 timeout 返回 null
+     */
+    public Token acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        int current = tryIncrement();
+        if (current >= 0) {
+            return new Token(current);
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while ((current = tryIncrement()) < 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+            return new Token(current);
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    // inflight 小于 limit 时加 1 并返回加 1 后的值，否则返回 -1
+    private int tryIncrement() {
+        while (true) {
+            int current = inflight.get();
+            if (current >= limit) {
+                return -1;
+            }
+            if (inflight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    private void release(int inflightAtStart, long rttNanos, boolean dropped, boolean sample) {
+        if (sample) {
+            synchronized (algorithm) {
+                double next = algorithm.update(estimate, rttNanos, inflightAtStart, dropped);
+                estimate = Math.max(minLimit, Math.min(maxLimit, next));
+                limit = (int) estimate;
+            }
+        }
+        inflight.decrementAndGet();
+        // 只有在有线程排队时才需要加锁唤醒，limit 增大时可能可以唤醒多个
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 一次获取到的许可，请求结束时必须调用且只调用一次 onSuccess()、onDropped() 或者 onIgnore()
+     */
+    final class Token {
+        private final int inflightAtStart;
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        private Token(int inflightAtStart) {
+            this.inflightAtStart = inflightAtStart;
+        }
+
+        // 请求成功，用本次的 RTT 调整 limit
+        public void onSuccess() {
+            release(System.nanoTime() - start, false, true);
+        }
+
+        // 请求被下游丢弃（超时、过载），减少 limit
+        public void onDropped() {
+            release(System.nanoTime() - start, true, true);
+        }
+
+        // 请求失败但和下游的负载无关（例如参数错误），不调整 limit
+        public void onIgnore() {
+            release(0, false, false);
+        }
+
+        private void release(long rttNanos, boolean dropped, boolean sample) {
+            if (released) {
+                throw new IllegalStateException("token already released");
+            }
+            released = true;
+            AdaptiveLimiter.this.release(inflightAtStart, rttNanos, dropped, sample);
+        }
+    }
+}
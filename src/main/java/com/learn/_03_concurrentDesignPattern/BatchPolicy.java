@@ -0,0 +1,60 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * 攒批策略配置
+ */
+final class BatchPolicy<T> {
+    final int minSize;
+    final int initialSize;
+    final int maxSize;
+    final long maxBytes;
+    final long maxLingerNanos;
+    // 目标批次延迟，0 表示固定策略，不做自适应调整
+    final long targetLatencyNanos;
+    // 估算元素字节数
+    final ToIntFunction<? super T> sizer;
+    // 紧急元素，遇到后立即结束当前批次
+    final Predicate<? super T> urgent;
+
+    private BatchPolicy(int minSize, int initialSize, int maxSize, long maxBytes, long maxLingerNanos,
+                        long targetLatencyNanos, ToIntFunction<? super T> sizer, Predicate<? super T> urgent) {
+        if (minSize <= 0 || initialSize < minSize || maxSize < initialSize) {
+            throw new IllegalArgumentException("require 0 < minSize <= initialSize <= maxSize");
+        }
+        this.minSize = minSize;
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+        this.maxLingerNanos = maxLingerNanos;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.sizer = sizer;
+        this.urgent = urgent;
+    }
+
+    // 固定策略：最多 maxSize 条，最多等待 maxLingerNanos
+    static <T> BatchPolicy<T> fixed(int maxSize, long maxLingerNanos) {
+        return new BatchPolicy<>(maxSize, maxSize, maxSize, Long.MAX_VALUE, maxLingerNanos, 0, t -> 0, t -> false);
+    }
+
+    // 自适应策略：批量上限在 [minSize, maxSize] 之间调整，尽量把批次延迟控制在 targetLatencyNanos 以内
+    static <T> BatchPolicy<T> adaptive(int minSize, int initialSize, int maxSize,
+                                       long maxLingerNanos, long targetLatencyNanos) {
+        return new BatchPolicy<>(minSize, initialSize, maxSize, Long.MAX_VALUE, maxLingerNanos,
+                targetLatencyNanos, t -> 0, t -> false);
+    }
+
+    // 按字节数限制批次大小
+    BatchPolicy<T> withMaxBytes(long maxBytes, ToIntFunction<? super T> sizer) {
+        return new BatchPolicy<>(minSize, initialSize, maxSize, maxBytes, maxLingerNanos,
+                targetLatencyNanos, sizer, urgent);
+    }
+
+    // 遇到紧急元素立即结束批次
+    BatchPolicy<T> withUrgent(Predicate<? super T> urgent) {
+        return new BatchPolicy<>(minSize, initialSize, maxSize, maxBytes, maxLingerNanos,
+                targetLatencyNanos, sizer, urgent);
+    }
+}
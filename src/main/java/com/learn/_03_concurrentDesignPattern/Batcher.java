@@ -0,0 +1,178 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 攒批引擎，可以被多个消费者线程同时使用
+ */
+class Batcher<T> {
+    private final BlockingQueue<T> queue;
+    private final BatchPolicy<T> policy;
+    // 当前的批量上限和最长等待时间（自适应调整，多个消费者并发更新时允许少量偏差）
+    private volatile int limit;
+    private volatile long lingerNanos;
+
+    private final LongHistogram batchSizes = new LongHistogram();
+    private final LongHistogram lingers = new LongHistogram();
+    // 每个消费者线程最近一次攒批的等待时间，complete() 时用于计算批次延迟
+    private final ThreadLocal<long[]> lastLinger = ThreadLocal.withInitial(() -> new long[1]);
+
+    public Batcher(BlockingQueue<T> queue, BatchPolicy<T> policy) {
+        this.queue = queue;
+        this.policy = policy;
+        this.limit = policy.initialSize;
+        this.lingerNanos = policy.maxLingerNanos;
+    }
+
+    // 阻塞直到取到至少一个元素，然后按照策略攒批，返回本批次的条数
+    public int drain(List<T> batch) throws InterruptedException {
+        T first = queue.take();
+        return fill(batch, first);
+    }
+
+    // 最多等待 timeout，超时没有元素时返回 0
+    public int drain(List<T> batch, long timeout, TimeUnit unit) throws InterruptedException {
+        T first = queue.poll(timeout, unit);
+        if (first == null) {
+            return 0;
+        }
+        return fill(batch, first);
+    }
+
+    private int fill(List<T> batch, T first) throws InterruptedException {
+        long start = System.nanoTime();
+        int n = collect(batch, first, start);
+        long linger = System.nanoTime() - start;
+        lastLinger.get()[0] = linger;
+        lingers.record(TimeUnit.NANOSECONDS.toMicros(linger));
+        batchSizes.record(n);
+        return n;
+    }
+
+    private int collect(List<T> batch, T first, long start) throws InterruptedException {
+        int max = limit;
+        long deadline = start + lingerNanos;
+        long bytes = policy.sizer.applyAsInt(first);
+        batch.add(first);
+        int n = 1;
+        if (policy.urgent.test(first)) {
+            return n;
+        }
+        while (n < max && bytes < policy.maxBytes) {
+            // 先非阻塞地取，队列为空时再按剩余等待时间阻塞地取
+            T t = queue.poll();
+            if (t == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (t = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            batch.add(t);
+            n++;
+            bytes += policy.sizer.applyAsInt(t);
+            if (policy.urgent.test(t)) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    // 反馈批次的处理耗时，自适应模式下据此调整批量上限和等待时间
+    public void complete(int batchSize, long processNanos) {
+        if (policy.targetLatencyNanos <= 0 || batchSize == 0) {
+            return;
+        }
+        int curLimit = limit;
+        long curLinger = lingerNanos;
+        long latency = lastLinger.get()[0] + processNanos;
+        if (latency > policy.targetLatencyNanos) {
+            // 超出 SLO：乘性减小
+            limit = Math.max(policy.minSize, curLimit * 3 / 4);
+            lingerNanos = Math.max(TimeUnit.MICROSECONDS.toNanos(100), curLinger / 2);
+        } else if (batchSize >= curLimit) {
+            // 批次攒满且满足 SLO：加性增大
+            limit = Math.min(policy.maxSize, curLimit + Math.max(1, curLimit / 4));
+            lingerNanos = Math.min(policy.maxLingerNanos, curLinger + curLinger / 4 + 1);
+        } else if (batchSize < curLimit / 2) {
+            // 负载低：逐步缩小
+            limit = Math.max(policy.minSize, curLimit - Math.max(1, curLimit / 8));
+            lingerNanos = Math.max(TimeUnit.MICROSECONDS.toNanos(100), curLinger - curLinger / 8);
+        }
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public LongHistogram batchSizes() {
+        return batchSizes;
+    }
+
+    public LongHistogram lingers() {
+        return lingers;
+    }
+
+    @Override
+    public String toString() {
+        return "Batcher{" +
+                "limit=" + limit +
+                ", linger=" + TimeUnit.NANOSECONDS.toMicros(lingerNanos) + "us" +
+                ", batches=" + batchSizes.count() +
+                ", p50=" + batchSizes.percentile(0.5) +
+                ", p99=" + batchSizes.percentile(0.99) +
+                '}';
+    }
+}
+
+/**
+ * 无锁的对数直方图：第 i 个桶记录 [2^(i-1), 2^i) 范围内的值，百分位数返回所在桶的上界
+ */
+class LongHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(65);
+
+    public void record(long value) {
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    public long percentile(double p) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < buckets.length(); i++) {
+            long c = buckets.get(i);
+            if (c > 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append("<").append(i == 0 ? 1 : i == 64 ? Long.MAX_VALUE : 1L << i).append(":").append(c);
+            }
+        }
+        return sb.append("}").toString();
+    }
+}
@@ -0,0 +1,7 @@
+package com.learn._03_concurrentDesignPattern;
+
+// 日志级别
+enum LEVEL{
+    INFO,
+    ERROR
+}
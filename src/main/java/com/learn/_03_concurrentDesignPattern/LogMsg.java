@@ -0,0 +1,19 @@
+package com.learn._03_concurrentDesignPattern;
+
+// 日志记录对象
+class LogMsg{
+    LEVEL level;
+    String msg;
+    public LogMsg(LEVEL level, String msg) {
+        this.level = level;
+        this.msg = msg;
+    }
+
+    @Override
+    public String toString() {
+        return "LogMsg{" +
+                "level=" + level +
+                ", msg='" + msg + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,20 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// 日志的写入目标，由消费者线程单线程调用
+interface LogWriter extends Closeable{
+    // 写入一条日志（不保证落盘）
+    void write(LogMsg msg) throws IOException;
+    // 写入一条已格式化的日志，msg 在调用返回后可能被复用；支持直接写入字符序列的实现可以避免创建 String
+    default void write(LEVEL level, CharSequence msg) throws IOException {
+        write(new LogMsg(level, msg.toString()));
+    }
+    // 带事件时间的写入，timestamp 是日志产生时的毫秒时间戳；不记录时间的实现忽略它
+    default void write(LEVEL level, long timestamp, CharSequence msg) throws IOException {
+        write(level, msg);
+    }
+    // 把已写入的日志落盘
+    void flush() throws IOException;
+}
@@ -0,0 +1,293 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写日志：管理多个分段，负责滚动和恢复
+ */
+class MappedLog implements LogWriter {
+    private static final String SUFFIX = ".wal";
+
+    private final File dir;
+    private final int segmentSize;
+    private MappedLogSegment active;
+    private int segmentCount;
+    // 编码消息用的可复用缓冲区
+    private byte[] scratch = new byte[1024];
+    private final CRC32 crc = new CRC32();
+
+    private MappedLog(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    // 打开（或创建）日志目录，从最后一个分段恢复写入位置
+    public static MappedLog open(File dir, int segmentSize) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create dir: " + dir);
+        }
+        MappedLog log = new MappedLog(dir, segmentSize);
+        File[] segments = listSegments(dir);
+        log.segmentCount = segments.length;
+        if (segments.length == 0) {
+            log.active = MappedLogSegment.create(log.segmentFile(0), segmentSize);
+            log.segmentCount = 1;
+        } else {
+            File last = segments[segments.length - 1];
+            log.active = MappedLogSegment.recover(last, segmentSize, log.crc);
+        }
+        return log;
+    }
+
+    @Override
+    public void write(LogMsg msg) throws IOException {
+        append(msg.level, System.currentTimeMillis(), msg.msg);
+    }
+
+    @Override
+    public void write(LEVEL level, CharSequence msg) throws IOException {
+        append(level, System.currentTimeMillis(), msg);
+    }
+
+    @Override
+    public void write(LEVEL level, long timestamp, CharSequence msg) throws IOException {
+        append(level, timestamp, msg);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        commit();
+    }
+
+    // 追加一条记录（只写入映射内存，不刷盘）
+    public void append(LEVEL level, long timestamp, CharSequence msg) throws IOException {
+        int length = encode(msg);
+        int recordSize = MappedLogSegment.HEADER + length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("record too large: " + recordSize);
+        }
+        if (active.remaining() < recordSize) {
+            roll();
+        }
+        active.append(timestamp, (byte) level.ordinal(), scratch, length, checksum(timestamp, level, length));
+    }
+
+    // 组提交：一批记录只刷一次盘
+    public void commit() {
+        active.force();
+    }
+
+    public int segmentCount() {
+        return segmentCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        active.force();
+        active.close();
+    }
+
+    private int checksum(long timestamp, LEVEL level, int length) {
+        crc.reset();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (timestamp >>> i));
+        }
+        crc.update(level.ordinal());
+        crc.update(scratch, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // 当前分段写满：刷盘、关闭，创建下一个分段
+    private void roll() throws IOException {
+        active.force();
+        active.close();
+        active = MappedLogSegment.create(segmentFile(segmentCount), segmentSize);
+        segmentCount++;
+    }
+
+    private File segmentFile(int index) {
+        return new File(dir, String.format("%020d", index) + SUFFIX);
+    }
+
+    // 把字符序列按 UTF-8 编码到 scratch 中，返回字节数
+    private int encode(CharSequence msg) {
+        int len = msg.length();
+        if (scratch.length < len * 3) {
+            scratch = new byte[Math.max(len * 3, scratch.length * 2)];
+        }
+        byte[] buf = scratch;
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            char c = msg.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(msg.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, msg.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符替换为 '?'
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private static File[] listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    // 按顺序回放目录下所有分段中校验通过的记录
+    public static void replay(File dir, RecordConsumer consumer) throws IOException {
+        CRC32 crc = new CRC32();
+        for (File file : listSegments(dir)) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                byte[] payload = new byte[1024];
+                int pos = 0;
+                while (true) {
+                    int length = MappedLogSegment.validRecordLength(buffer, pos, crc);
+                    if (length < 0) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    long timestamp = buffer.getLong(pos + 8);
+                    LEVEL level = LEVEL.values()[buffer.get(pos + 16)];
+                    for (int i = 0; i < length; i++) {
+                        payload[i] = buffer.get(pos + MappedLogSegment.HEADER + i);
+                    }
+                    consumer.accept(level, timestamp, payload, 0, length);
+                    pos += MappedLogSegment.HEADER + length;
+                }
+            }
+        }
+    }
+
+    // 回放记录的回调，payload 在回调返回后会被复用，需要保留时请自行拷贝
+    interface RecordConsumer {
+        void accept(LEVEL level, long timestamp, byte[] payload, int offset, int length);
+
+        // 把载荷解码为字符串的辅助方法
+        static String toString(byte[] payload, int offset, int length) {
+            return new String(payload, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+}
+
+/**
+ * 日志分段：一个整体映射到内存中的固定大小文件
+ */
+class MappedLogSegment {
+    // 记录头：长度(4) + CRC(4) + 时间戳(8) + 级别(1)
+    static final int HEADER = 17;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    // 自上次刷盘以来是否有新的写入
+    private boolean dirty;
+
+    private MappedLogSegment(File file, int size, int position) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.position = position;
+    }
+
+    static MappedLogSegment create(File file, int size) throws IOException {
+        return new MappedLogSegment(file, size, 0);
+    }
+
+    // 扫描分段找到最后一条完整的记录，之后的残缺数据清零
+    static MappedLogSegment recover(File file, int size, CRC32 crc) throws IOException {
+        MappedLogSegment segment = new MappedLogSegment(file, size, 0);
+        int pos = 0;
+        int length;
+        while ((length = validRecordLength(segment.buffer, pos, crc)) >= 0) {
+            pos += HEADER + length;
+        }
+        // 残缺的尾部中间可能夹着 0 字节，必须一直清零到分段末尾，否则 0 之后的旧数据在下次恢复时可能被当成记录
+        segment.zero(pos, size);
+        segment.position = pos;
+        return segment;
+    }
+
+    // 校验 pos 处的记录，返回载荷长度；不是完整有效的记录时返回 -1
+    static int validRecordLength(MappedByteBuffer buffer, int pos, CRC32 crc) {
+        if (buffer.capacity() - pos < HEADER) {
+            return -1;
+        }
+        int length = buffer.getInt(pos);
+        int checksum = buffer.getInt(pos + 4);
+        if (length < 0 || (length == 0 && checksum == 0) || buffer.capacity() - pos - HEADER < length) {
+            return -1;
+        }
+        crc.reset();
+        for (int i = pos + 8; i < pos + HEADER + length; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue() == checksum ? length : -1;
+    }
+
+    // 把 [from, to) 清零
+    private void zero(int from, int to) {
+        byte[] zeros = new byte[Math.min(8192, Math.max(0, to - from))];
+        for (int pos = from; pos < to; pos += zeros.length) {
+            buffer.position(pos);
+            buffer.put(zeros, 0, Math.min(zeros.length, to - pos));
+        }
+    }
+
+    int remaining() {
+        return buffer.capacity() - position;
+    }
+
+    void append(long timestamp, byte level, byte[] payload, int length, int checksum) {
+        int pos = position;
+        buffer.putInt(pos, length);
+        buffer.putInt(pos + 4, checksum);
+        buffer.putLong(pos + 8, timestamp);
+        buffer.put(pos + 16, level);
+        buffer.position(pos + HEADER);
+        buffer.put(payload, 0, length);
+        position = pos + HEADER + length;
+        dirty = true;
+    }
+
+    void force() {
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+        raf.close();
+    }
+}
@@ -0,0 +1,8 @@
+package com.learn._03_concurrentDesignPattern;
+
+// 队列满时的处理策略
+enum QueueFullPolicy {
+    BLOCK,
+    DROP_INFO,
+    SYNC
+}
@@ -0,0 +1,37 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * 接口-路由信息表：读操作无锁，服务上线、下线时写时复制
+ */
+class RouterTable{
+    private Map<String, CopyOnWriteArraySet<Router>> table = new ConcurrentHashMap<>();
+
+    // 根据接口名获取路由信息表
+    public Set<Router> get(String iFace){
+        return table.get(iFace);
+    }
+
+    // 服务下线——从路由信息表中删除路由信息
+    public void remove(Router router){
+        // 获取接口对应的路由信息表
+        Set<Router> routers = table.get(router.getiFace());
+        // 从路由信息表中删除路由信息
+        if (routers != null){
+            routers.remove(router);
+        }
+    }
+
+    // 服务上线——向路由信息表中增加路由信息
+    public void add(Router router){
+        // 获取/创建接口对应的路由信息表
+        Set<Router> routers =
+                table.computeIfAbsent(router.getiFace(), k -> new CopyOnWriteArraySet<>());
+        // 向路由信息表中增加路由信息
+        routers.add(router);
+    }
+}
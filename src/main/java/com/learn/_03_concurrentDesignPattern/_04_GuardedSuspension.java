@@ -3,17 +3,25 @@ package com.learn._03_concurrentDesignPattern;
 
 import com.learn.common.CommTools;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Predicate;
 
 /**
@@ -32,12 +40,16 @@ import java.util.function.Predicate;
  *   2）实现原理：
  *     - get() 方法通过条件变量的 await() 方法实现等待
  *     - onChanged() 方法通过条件变量的 signalAll() 方法实现唤醒功能
+ *     - 下面的 GuardedObject 实现中，用 LockSupport.park()/unpark() 代替了条件变量，原理相同但开销更小
  *
  *  拓展问题：
  *    - handleWebReq() 里面创建了 GuardedObject 对象的实例 go，并调用其 get() 方等待结果，
  *      那在 onMessage() 方法中，如何才能够找到匹配的 GuardedObject 对象，调用 onChange() 方法执行事件通知呢？
  *    - 通过消息的唯一 id 进行标记具体的 GuardedObject, 提供可以通过消息唯一 id 找到具体 GuardedObject 对象，
  *      进而调用 onChange() 事件通知的方法。
+ *    - 注册表中的 GuardedObject 必须在等待条件满足或超时后移除，否则每个请求都会留下一个条目，造成内存泄漏；
+ *      等待必须支持超时，否则 MQ 丢失响应时请求线程会被永久阻塞。
+ *      大量在途请求的截止时间使用哈希时间轮管理，等待线程使用 LockSupport 直接挂起，不再为每个请求创建一把锁。
  *  拓展理解：
  *    - 属于多线程版本的 if。
  *      单线程场景中，if 语句是不需要等待的，因为在只有一个线程的条件下，如果这个线程被阻塞，
@@ -46,14 +58,34 @@ import java.util.function.Predicate;
  */
 public class _04_GuardedSuspension {
     /* 客户端 */
+    // 同步 API：异步 API 的一层薄封装，阻塞等待 Future 完成，超时则返回超时状态的响应
     public static Message handleWebRequest(Message message){
-        // 1. 发送消息给 MQ
+        try {
+            return handleWebRequestAsync(message, 10, TimeUnit.SECONDS).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                Message result = new Message(message);
+                result.setStatus("TIMEOUT");
+                return result;
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 异步 API：发送消息后立即返回 Future，由 onMessage() 完成 Future，调用线程不再被阻塞
+    //  - 超时：截止时间到期后 Future 以 TimeoutException 异常完成
+    //  - 取消：调用 future.cancel() 会把等待对象从注册表中移除，之后到达的响应会被丢弃
+    // 这样少量线程就可以同时保持成千上万个在途的 MQ 请求，而不是受限于线程池的线程数。
+    public static CompletableFuture<Message> handleWebRequestAsync(Message message, long timeout, TimeUnit unit){
+        // 1. 先登记等待对象再发送消息，避免 MQ 响应先于登记到达导致通知丢失
+        CompletableFuture<Message> future = GuardedObject.createFuture(message.getId(), timeout, unit);
+        // 2. 发送消息给 MQ
         send(message);
-        // 2. 等待 MQ 消费完成返回消息
-        GuardedObject<Message> go = GuardedObject.create(message.getId());
-        Message result = go.get(t -> t != null);
-        // 3. 返回响应消息结果
-        return result;
+        // 3. 返回 Future，响应消息到达时被完成
+        return future;
     }
     public static void send(Message message){
         // 客户端完成发送
@@ -82,6 +114,17 @@ public class _04_GuardedSuspension {
     }
 
     public static void main(String[] args) throws InterruptedException {
+        // 1 同步等待：每个请求占用一个线程，线程池大小限制了在途请求数
+        blockingRequests();
+
+        // 2 异步等待：主线程一次发出所有请求，由 Future 回调处理响应
+        // asyncRequests();
+
+        System.out.println("pending: " + GuardedObject.pending());
+        executor.shutdown();
+    }
+
+    public static void blockingRequests() throws InterruptedException {
         AtomicLong atomicLong = new AtomicLong(100);
         ExecutorService pool = Executors.newFixedThreadPool(5);
         CountDownLatch latch = new CountDownLatch(5);
@@ -96,60 +139,401 @@ public class _04_GuardedSuspension {
         }
         latch.await();
         pool.shutdown();
-        executor.shutdown();
+    }
+
+    public static void asyncRequests() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Message req = new Message(String.valueOf(200 + i), "{...}");
+            // 最后一个请求演示取消
+            CompletableFuture<Message> future = handleWebRequestAsync(req, 3, TimeUnit.SECONDS);
+            if (i == 19) {
+                future.cancel(false);
+            }
+            futures.add(future.handle((resp, e) -> {
+                System.out.println(req + "  :  " + (e == null ? resp : e.getClass().getSimpleName()));
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
     }
 
 }
 
+/**
+ * 受保护对象
+ *  - 等待线程不再为每个请求创建 ReentrantLock + Condition，而是仿照 FutureTask，
+ *    把等待线程压入一个无锁的等待栈，通过 LockSupport.park()/unpark() 直接挂起和唤醒。
+ *  - 每个 GuardedObject 创建时都会在时间轮上登记一个截止时间，
+ *    等待条件满足、超时到期或者等待方放弃时，都会把它从注册表中移除并取消截止时间，避免注册表只增不减造成内存泄漏。
+ *  - 事件通知（fireEvent）只更新受保护对象并唤醒等待线程，不满足等待条件的事件不会移除注册表条目，
+ *    等待方可以继续等待后续的事件；以 Future 方式等待时没有条件，第一个事件就会完成 Future。
+ */
 class GuardedObject<T>{
-    // 受保护的对象
-    private T obj;
-    private final Lock lock = new ReentrantLock();
-    private final Condition done = lock.newCondition();
+    // 默认的请求截止时间
+    private static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    // 状态：等待中、已完成、已超时
+    private static final int NEW = 0, DONE = 1, EXPIRED = 2;
+
     // MQ 消息 id 和 GuardedObject 对象实例的关系：<Key: MQ 消息 id, Value: GuardedObject 对象实例>
-    private static final Map<Object, GuardedObject> gos = new ConcurrentHashMap<>();
+    private static final GuardedRegistry gos = new GuardedRegistry(16);
+    // 所有 GuardedObject 共用一个时间轮管理截止时间，tick 为 10ms
+    private static final HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+
+    // 受保护的对象
+    private volatile T obj;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    // 等待线程栈（Treiber Stack）
+    private final AtomicReference<WaitNode> waiters = new AtomicReference<>();
+    private final Object key;
+    private volatile HashedWheelTimer.Timeout timeout;
+    // 异步等待方使用的 Future，只有通过 createFuture() 创建时才不为 null
+    private volatile CompletableFuture<T> future;
 
-    // 创建一个 GuardedObject 对象，并使用消息的唯一 id 记录
-    public static <K> GuardedObject create(K key){
-        GuardedObject go = new GuardedObject();
-        gos.put(key, go);
+    private GuardedObject(Object key) {
+        this.key = key;
+    }
+
+    // 创建一个 GuardedObject 对象，并使用消息的唯一 id 记录，使用默认的截止时间
+    public static <K, T> GuardedObject<T> create(K key){
+        return create(key, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // 创建一个 GuardedObject 对象，截止时间到期后自动从注册表中移除并唤醒所有等待线程
+    public static <K, T> GuardedObject<T> create(K key, long timeout, TimeUnit unit){
+        GuardedObject<T> go = new GuardedObject<>(key);
+        if (gos.putIfAbsent(key, go) != null) {
+            throw new IllegalStateException("duplicate key: " + key);
+        }
+        go.timeout = timer.newTimeout(go::expire, timeout, unit);
         return go;
     }
 
+    // 创建一个以 Future 方式等待的 GuardedObject 对象，返回的 Future 在事件通知时完成，
+    // 超时后以 TimeoutException 异常完成，被取消时从注册表中移除
+    public static <K, T> CompletableFuture<T> createFuture(K key, long timeout, TimeUnit unit){
+        GuardedObject<T> go = new GuardedObject<>(key);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        go.future = future;
+        if (gos.putIfAbsent(key, go) != null) {
+            throw new IllegalStateException("duplicate key: " + key);
+        }
+        go.timeout = timer.newTimeout(go::expire, timeout, unit);
+        future.whenComplete((r, e) -> {
+            if (future.isCancelled()) {
+                go.cancel();
+            }
+        });
+        return future;
+    }
+
     // 通过消息的唯一 id 找到具体等待的 GuardedObject 对象，执行事件通知操作
-    public static <K, T> void fireEvent(K key, T obj){
-        GuardedObject go = gos.get(key);
+    // 注册表条目在等待条件满足后才被移除，不满足条件的事件之后还可以继续通知
+    public static <K, T> boolean fireEvent(K key, T obj){
+        @SuppressWarnings("unchecked")
+        GuardedObject<T> go = (GuardedObject<T>) gos.get(key);
         if (go != null){
             go.onChange(obj);
+            return true;
         }
+        return false;
+    }
+
+    // 当前在途（已登记未完成）的请求数
+    public static int pending(){
+        return gos.size();
     }
 
-    // 异步转同步的等待方法
-    // 线程阻塞直到条件满足，通过条件变量的 await() 方法实现等待
+    // 异步转同步的等待方法，直到条件满足或截止时间到期；被中断时保留中断标记
     public T get(Predicate<T> p){
-        lock.lock();
         try {
-            while (!p.test(obj)){
-                done.await();
-            }
-        } catch (InterruptedException e) {
+            return await(p, false, 0L);
+        } catch (TimeoutException e) {
             throw new RuntimeException(e);
-        }finally {
-            lock.unlock();
         }
-        // 返回非空的受保护对象
-        return obj;
+    }
+
+    // 异步转同步的等待方法，最多等待 timeout 时间，超时抛出 TimeoutException
+    public T get(Predicate<T> p, long timeout, TimeUnit unit) throws TimeoutException {
+        return await(p, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private T await(Predicate<T> p, boolean timed, long deadline) throws TimeoutException {
+        WaitNode node = null;
+        while (true) {
+            T cur = obj;
+            if (p.test(cur)) {
+                // 条件满足才结束等待对象：从注册表移除并取消截止时间
+                finish();
+                return cur;
+            }
+            int s = state.get();
+            if (s == EXPIRED) {
+                throw new TimeoutException("request " + key + " expired");
+            }
+            if (s == DONE) {
+                // 同一个 key 的其他等待方已经满足条件并结束了等待对象，之后不会再有事件通知
+                throw new IllegalStateException("request " + key + " already completed");
+            }
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(new InterruptedException("request " + key + " interrupted"));
+            }
+            // 等待节点已经被 onChange() 取走（唤醒），重新入栈后再检查一次条件
+            if (node == null || node.thread == null) {
+                node = new WaitNode(Thread.currentThread());
+                WaitNode head;
+                do {
+                    head = waiters.get();
+                    node.next = head;
+                } while (!waiters.compareAndSet(head, node));
+                continue;
+            }
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    // 调用方放弃等待，同时把自己从注册表中清理掉并取消时间轮上的截止时间
+                    cancel();
+                    throw new TimeoutException("request " + key + " timeout");
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
     }
 
     // 事件通知方法
-    // 改变受保护对象的状态，通过条件变量的 signalAll() 方法实现唤醒功能
+    // 改变受保护对象的状态，唤醒所有等待线程，由等待线程判断条件是否满足
     public void onChange(T obj){
-        lock.lock();
-        try {
-            this.obj = obj;
-            done.signalAll();
-        }finally {
-            lock.unlock();
+        this.obj = obj;
+        CompletableFuture<T> f = future;
+        if (f != null && finish()) {
+            f.complete(obj);
+        }
+        wakeAll();
+    }
+
+    // 等待结束：从注册表移除，取消时间轮上的截止时间，唤醒其他等待线程
+    private boolean finish(){
+        if (state.compareAndSet(NEW, DONE)) {
+            gos.remove(key, this);
+            cancelTimeout();
+            wakeAll();
+            return true;
+        }
+        return false;
+    }
+
+    // 截止时间到期：从注册表移除，唤醒所有等待线程
+    private void expire(){
+        if (state.compareAndSet(NEW, EXPIRED)) {
+            gos.remove(key, this);
+            CompletableFuture<T> f = future;
+            if (f != null) {
+                f.completeExceptionally(new TimeoutException("request " + key + " timeout"));
+            }
+            wakeAll();
+        }
+    }
+
+    // 等待方主动取消：从注册表移除，同时取消时间轮上的截止时间
+    private void cancel(){
+        if (state.compareAndSet(NEW, EXPIRED)) {
+            gos.remove(key, this);
+            cancelTimeout();
+            wakeAll();
+        }
+    }
+
+    private void cancelTimeout(){
+        HashedWheelTimer.Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
+    private void wakeAll(){
+        WaitNode node = waiters.getAndSet(null);
+        while (node != null) {
+            Thread t = node.thread;
+            node.thread = null;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+            node = node.next;
+        }
+    }
+
+    static final class WaitNode {
+        volatile Thread thread;
+        WaitNode next;
+
+        WaitNode(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
+
+/**
+ * 分片的请求注册表
+ *  - 按照 key 的 hash 值分到多个 ConcurrentHashMap 中，大量在途请求时扩容只影响单个分片。
+ */
+class GuardedRegistry {
+    private final ConcurrentHashMap<Object, GuardedObject<?>>[] shards;
+    private final int mask;
+
+    @SuppressWarnings("unchecked")
+    public GuardedRegistry(int shardCount) {
+        // 分片数向上取整为 2 的幂，用位运算取模
+        int n = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+        this.shards = (ConcurrentHashMap<Object, GuardedObject<?>>[]) new ConcurrentHashMap<?, ?>[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    private ConcurrentHashMap<Object, GuardedObject<?>> shard(Object key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    public GuardedObject<?> putIfAbsent(Object key, GuardedObject<?> go) {
+        return shard(key).putIfAbsent(key, go);
+    }
+
+    public GuardedObject<?> get(Object key) {
+        return shard(key).get(key);
+    }
+
+    public boolean remove(Object key, GuardedObject<?> go) {
+        return shard(key).remove(key, go);
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<Object, GuardedObject<?>> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+}
+
+/**
+ * 哈希时间轮（参考 Netty 的 HashedWheelTimer）
+ *  - 时间轮是一个环形数组，每个格子（bucket）代表一个 tick 时长，一个后台线程每个 tick 前进一格，
+ *    执行当前格子里已经到期的任务。超过一圈的任务记录剩余圈数 remainingRounds，每转一圈减一。
+ *  - 新增任务先放入无锁的 pending 队列，由时间轮线程搬运到对应的格子，格子只被时间轮线程访问，不需要加锁。
+ *  - 新增和取消都是 O(1)，适合管理大量在途请求的截止时间（相比 DelayQueue 的 O(log n) 和全局锁）。
+ *  - 取消的任务不会立即从格子中删除，而是在时间轮转到该格子时被跳过并清理掉。
+ */
+class HashedWheelTimer {
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(long tick, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = unit.toNanos(tick);
+        int n = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = (List<Timeout>[]) new List<?>[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+    // 登记一个延迟任务
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (started.compareAndSet(false, true)) {
+            Thread worker = new Thread(this::work, "guarded-timing-wheel");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay) - startTime);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        long tick = 0;
+        while (true) {
+            // 等待到下一个 tick 的时间点
+            long deadline = tickNanos * (tick + 1);
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            transferPending(tick);
+            expireBucket(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    // 把 pending 队列中的任务搬运到对应的格子
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的任务放到当前格子，本次 tick 立即执行
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(List<Timeout> bucket, long deadline) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                it.remove();
+                timeout.expire();
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    static final class Timeout {
+        private static final int INIT = 0, CANCELLED = 1, EXPIRED = 2;
+        private final Runnable task;
+        private final long deadline;
+        // 只被时间轮线程访问
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public boolean cancel() {
+            return state.compareAndSet(INIT, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(INIT, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 }
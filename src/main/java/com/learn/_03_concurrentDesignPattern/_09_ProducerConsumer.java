@@ -1,15 +1,34 @@
 package com.learn._03_concurrentDesignPattern;
 
+import com.learn.common.CommTools;
+
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.Writer;
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 /**
  * 生产者-消费者设计模式：并发编程领域里，解决分工问题的一种设计模式。
@@ -25,7 +44,25 @@ import java.util.concurrent.TimeUnit;
  *       使用 3 个生产者线程和 1 个消费者线程即可让生产和消费的速率持平，实现使用适量线程即可达成效果。
  */
 public class _09_ProducerConsumer{
-
+    public static void main(String[] args) throws InterruptedException {
+        // 批量执行：order 表的批量操作是事务性的（有坏数据则整批被拒绝），item 表允许部分失败
+        Predicate<Object> badRow = row -> ((Integer) row) % 997 == 996;
+        InMemoryBatchSink orderSink = new InMemoryBatchSink(badRow, true, 0.05);
+        InMemoryBatchSink itemSink = new InMemoryBatchSink(badRow, false, 0.05);
+        BatchExecution execution = new BatchExecution((type, rows) ->
+                "order".equals(type) ? orderSink.executeBatch(type, rows) : itemSink.executeBatch(type, rows));
+        execution.start();
+        for (int i = 0; i < 20_000; i++) {
+            execution.submit(new BulkTask(i % 2 == 0 ? "order" : "item", i));
+        }
+        execution.stop(1, TimeUnit.MINUTES);
+        System.out.println("applied=" + execution.applied() +
+                ", bulkCalls=" + execution.bulkCalls() +
+                ", order=" + orderSink.size("order") +
+                ", item=" + itemSink.size("item") +
+                ", deadLetters=" + execution.deadLetters());
+        System.out.println(execution.batcher());
+    }
 }
 
 /**
@@ -41,49 +78,287 @@ public class _09_ProducerConsumer{
  *  - 方案实现：
  *    将原来直接 INSERT 数据到数据库的线程作为生产者线程，
  *    生产者线程只需将数据添加到任务队列，然后消费者线程负责将任务从任务队列中批量取出并批量执行。
+ *  - 批量执行的容错：
+ *    1）部分行失败时只重试失败的行，瞬时故障时整批重试，都带指数退避；
+ *    2）整批被拒绝时二分拆批，把坏数据隔离出来放入死信队列，不影响同批次的其他数据；
+ *       拆分深度有上限，超过上限的批次整体放入死信队列；批量目标抛出的运行时异常也把整批放入死信队列；
+ *    3）使用毒丸实现两阶段终止，终止前把已入队的任务全部执行完。
  */
 class BatchExecution{
+    // 消费者线程数
+    private static final int WORKERS = 5;
+    // 每个批量操作的最大重试次数
+    private static final int MAX_RETRIES = 3;
+    // 二分拆批的最大深度：2^11 > 批量上限 2000，足以把一个坏行隔离成单独的批次，同时限制一个批次最多拆出的调用次数
+    private static final int MAX_SPLIT_DEPTH = 11;
+
     // 任务队列
-    private static BlockingQueue<Runnable> bq =
+    private final BlockingQueue<BulkTask> bq =
             new LinkedBlockingQueue<>(2000);
 
+    // 毒丸：每个消费者线程消费到一个毒丸后退出
+    private final BulkTask poisonPill = new BulkTask("", null);
+
+    // 攒批引擎：每批 16 ~ 2000 条自适应调整，最多等待 10ms 攒批，批次延迟目标 100ms；毒丸立即结束当前批次
+    private final Batcher<BulkTask> batcher = new Batcher<>(bq, BatchPolicy.<BulkTask>adaptive(
+            16, 1000, 2000, TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(100))
+            .withUrgent(task -> task == poisonPill));
+
+    // 批量操作的目标（数据库等）
+    private final BatchSink sink;
+    private final ExecutorService es = Executors.newFixedThreadPool(WORKERS);
+
+    // 提交任务和终止之间的互斥：提交任务持有读锁，终止持有写锁，保证毒丸之后不会再有任务入队
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private boolean stopped = false;
+
+    // 重试后仍然失败的任务（死信），隔离出来等待人工处理，不影响同一批次中的其他任务
+    private final Queue<BulkTask> deadLetters = new ConcurrentLinkedQueue<>();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong bulkCalls = new AtomicLong();
+
+    public BatchExecution(BatchSink sink) {
+        this.sink = sink;
+    }
+
     // 消费者（启动 5 个消费者线程消费）
     public void start(){
-        ExecutorService es = Executors.newFixedThreadPool(5);
-        for (int i = 0; i < 5; i++) {
+        for (int i = 0; i < WORKERS; i++) {
             es.execute(()->{
-                while (true){
-                    // 获取批量任务
-                    List<Runnable> ts = null;
-                    try {
-                        ts = pollTasks();
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
+                try {
+                    while (true){
+                        // 获取批量任务
+                        List<BulkTask> ts = pollTasks();
+                        // 毒丸是紧急元素，只可能出现在批次的最后
+                        boolean last = ts.get(ts.size() - 1) == poisonPill;
+                        if (last) {
+                            ts.remove(ts.size() - 1);
+                        }
+                        // 执行批量任务，并把执行耗时反馈给攒批引擎
+                        long start = System.nanoTime();
+                        execTasks(ts);
+                        batcher.complete(ts.size(), System.nanoTime() - start);
+                        if (last) {
+                            return;
+                        }
                     }
-                    // 执行批量任务
-                    execTasks(ts);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             });
         }
     }
 
-    // 从任务队列中获取批量任务
-    public List<Runnable> pollTasks() throws InterruptedException {
-        LinkedList<Runnable> ts = new LinkedList<>();
-        // 阻塞式的从阻塞队列获取一条任务
-        Runnable task = bq.take();
-        // 首先采用阻塞方式，是因为如果任务队列中没有任务，这样的方式能够避免无谓的循环
-        while (task != null){
-            ts.add(task);
-            // 非阻塞式的从阻塞队列获取一条任务
-            task = bq.poll();
+    // 生产者提交任务
+    public void submit(BulkTask task) throws InterruptedException {
+        stateLock.readLock().lock();
+        try {
+            if (stopped) {
+                throw new IllegalStateException("BatchExecution is stopped");
+            }
+            bq.put(task);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    // 两阶段终止：
+    //  第一阶段：拒绝新任务，并为每个消费者线程放入一个毒丸；
+    //  第二阶段：消费者线程把毒丸之前的任务全部执行完，消费到毒丸后自行退出。
+    public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        stateLock.writeLock().lock();
+        try {
+            if (!stopped) {
+                stopped = true;
+                for (int i = 0; i < WORKERS; i++) {
+                    bq.put(poisonPill);
+                }
+                es.shutdown();
+            }
+        } finally {
+            stateLock.writeLock().unlock();
         }
+        return es.awaitTermination(timeout, unit);
+    }
+
+    // 从任务队列中获取批量任务
+    public List<BulkTask> pollTasks() throws InterruptedException {
+        List<BulkTask> ts = new ArrayList<>();
+        // 首先阻塞式的获取一条任务，是因为如果任务队列中没有任务，这样的方式能够避免无谓的循环；
+        // 之后由攒批引擎按照批量上限和最长等待时间继续获取任务
+        batcher.drain(ts);
         return ts;
     }
 
-    // 执行批量任务
-    public void execTasks(List<Runnable> ts){
-        // 省略具体实现代码
+    // 攒批统计：批次大小和攒批等待时间的直方图
+    public Batcher<BulkTask> batcher(){
+        return batcher;
+    }
+
+    // 执行批量任务：同一类型的 BulkTask 合并为一次批量操作（类似 JDBC 的 addBatch() + executeBatch()）
+    public void execTasks(List<BulkTask> ts){
+        Map<String, List<BulkTask>> groups = new LinkedHashMap<>();
+        for (BulkTask task : ts) {
+            groups.computeIfAbsent(task.type(), k -> new ArrayList<>()).add(task);
+        }
+        groups.forEach((type, tasks) -> applyBulk(type, tasks, 0));
+    }
+
+    // 执行一次批量操作，失败时按失败类型重试或隔离；depth 是当前的二分拆批深度
+    private void applyBulk(String type, List<BulkTask> tasks, int depth) {
+        List<BulkTask> pending = tasks;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            List<Object> rows = new ArrayList<>(pending.size());
+            for (BulkTask task : pending) {
+                rows.add(task.row());
+            }
+            try {
+                bulkCalls.incrementAndGet();
+                sink.executeBatch(type, rows);
+                applied.addAndGet(pending.size());
+                return;
+            } catch (BatchUpdateException e) {
+                // 部分失败：成功的行已经生效，只重试失败的行和驱动没有执行到的行
+                int[] counts = e.getUpdateCounts();
+                List<BulkTask> failed = new ArrayList<>();
+                for (int i = 0; i < pending.size(); i++) {
+                    if (counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED) {
+                        failed.add(pending.get(i));
+                    }
+                }
+                applied.addAndGet(pending.size() - failed.size());
+                pending = failed;
+            } catch (SQLTransientException e) {
+                // 瞬时故障（例如连接超时）：整批重试
+            } catch (SQLException e) {
+                // 整批被拒绝（例如事务性批量中的某一行违反约束）：二分拆批，把坏数据隔离到尽可能小的批次中
+                if (pending.size() > 1 && depth < MAX_SPLIT_DEPTH) {
+                    int mid = pending.size() / 2;
+                    applyBulk(type, pending.subList(0, mid), depth + 1);
+                    applyBulk(type, pending.subList(mid, pending.size()), depth + 1);
+                    return;
+                }
+                deadLetters.addAll(pending);
+                return;
+            } catch (RuntimeException e) {
+                // 批量目标的程序错误：无法判断哪些行生效，整批放入死信，消费者线程继续运行
+                e.printStackTrace();
+                deadLetters.addAll(pending);
+                return;
+            }
+            if (attempt >= MAX_RETRIES) {
+                deadLetters.addAll(pending);
+                return;
+            }
+            // 指数退避后重试
+            CommTools.sleep(10L << attempt, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long applied() {
+        return applied.get();
+    }
+
+    public long bulkCalls() {
+        return bulkCalls.get();
+    }
+
+    public Queue<BulkTask> deadLetters() {
+        return deadLetters;
+    }
+}
+
+/**
+ * 可以被合并为批量操作的任务：同一 type（例如同一张表的 INSERT）的任务会被合并执行
+ *  - BulkTask 只是一行数据，不是 Runnable，只能交给 BatchExecution 合并执行
+ */
+final class BulkTask {
+    private final String type;
+    private final Object row;
+
+    public BulkTask(String type, Object row) {
+        this.type = type;
+        this.row = row;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public Object row() {
+        return row;
+    }
+
+    @Override
+    public String toString() {
+        return type + ":" + row;
+    }
+}
+
+/**
+ * 批量操作的目标，语义参考 JDBC 的 Statement.executeBatch()：
+ *  - 全部成功：返回每一行的更新条数；
+ *  - 部分失败：抛出 BatchUpdateException，updateCounts 中失败的行为 Statement.EXECUTE_FAILED；
+ *  - 瞬时故障：抛出 SQLTransientException，整批都没有生效，可以整批重试；
+ *  - 整批被拒绝：抛出其他 SQLException，整批都没有生效。
+ */
+interface BatchSink {
+    int[] executeBatch(String type, List<Object> rows) throws SQLException;
+}
+
+/**
+ * 内存中的批量操作目标（嵌入式数据库的替身），用于演示和测试
+ *  - 每次 executeBatch() 模拟一次网络往返的固定耗时；
+ *  - badRow 匹配的行会失败：atomic 模式下整批被拒绝，否则只有这些行失败；
+ *  - 按照 transientFailureRate 的概率模拟瞬时故障。
+ */
+class InMemoryBatchSink implements BatchSink {
+    private final Map<String, List<Object>> tables = new ConcurrentHashMap<>();
+    private final Predicate<Object> badRow;
+    private final boolean atomic;
+    private final double transientFailureRate;
+
+    public InMemoryBatchSink(Predicate<Object> badRow, boolean atomic, double transientFailureRate) {
+        this.badRow = badRow;
+        this.atomic = atomic;
+        this.transientFailureRate = transientFailureRate;
+    }
+
+    @Override
+    public int[] executeBatch(String type, List<Object> rows) throws SQLException {
+        // 模拟一次往返的耗时
+        CommTools.sleep(1, TimeUnit.MILLISECONDS);
+        if (ThreadLocalRandom.current().nextDouble() < transientFailureRate) {
+            throw new SQLTransientException("connection reset");
+        }
+        List<Object> table = tables.computeIfAbsent(type, k -> Collections.synchronizedList(new ArrayList<>()));
+        int[] counts = new int[rows.size()];
+        boolean failed = false;
+        for (int i = 0; i < rows.size(); i++) {
+            if (badRow.test(rows.get(i))) {
+                if (atomic) {
+                    throw new SQLIntegrityConstraintViolationException("bad row: " + rows.get(i));
+                }
+                counts[i] = Statement.EXECUTE_FAILED;
+                failed = true;
+            } else {
+                counts[i] = 1;
+            }
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            if (counts[i] == 1) {
+                table.add(rows.get(i));
+            }
+        }
+        if (failed) {
+            throw new BatchUpdateException(counts);
+        }
+        return counts;
+    }
+
+    public int size(String type) {
+        List<Object> table = tables.get(type);
+        return table == null ? 0 : table.size();
     }
 }
 
@@ -98,27 +373,31 @@ class BatchExecution{
  *  - 实现逻辑：
  *   1）每记录一次日志，都会创建了一个日志任务 LogMsg，并添加到阻塞队列中。
  *   2）消费者线程负责读取阻塞队列中的日志任务，根据刷盘规则将日志记录写入日志文件中。
+ *   3）刷盘规则由攒批引擎 Batcher（_14_AdaptiveBatcher）实现：每攒够一批写入并刷盘一次，
+ *      批量上限和等待时间会随负载自适应调整。
+ *  - 日志级别 LEVEL、日志记录 LogMsg 和写入目标 LogWriter 被多个日志示例共用，放在各自的源文件中。
  */
-// 日志级别
-enum LEVEL{
-    INFO,
-    ERROR
-}
-// 日志记录对象
-class LogMsg{
-    LEVEL level;
-    String msg;
-    public LogMsg(LEVEL level, String msg) {
-        this.level = level;
-        this.msg = msg;
+// 基于字符流的日志写入，每条日志写入 LogMsg.toString()
+class TextLogWriter implements LogWriter{
+    private final Writer writer;
+
+    public TextLogWriter(Writer writer) {
+        this.writer = writer;
     }
 
     @Override
-    public String toString() {
-        return "LogMsg{" +
-                "level=" + level +
-                ", msg='" + msg + '\'' +
-                '}';
+    public void write(LogMsg msg) throws IOException {
+        writer.write(msg.toString());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
     }
 }
 
@@ -131,55 +410,55 @@ class LoggerTool{
     private final ExecutorService es =
             Executors.newFixedThreadPool(1);
 
-    // 批量写入日志记录的条数
-    private static final int BATCH_SIZE = 500;
+    // 攒批引擎：对应刷盘规则
+    //  1）ERROR 日志和毒丸是紧急元素，立即结束当前批次并刷盘；
+    //  2）批量上限初始为 500 条，负载高时最多增大到 2000 条，负载低时缩小；
+    //  3）一批最多等待 5 秒，批次延迟超过 5 秒时自动缩短等待时间。
+    private final Batcher<LogMsg> batcher = new Batcher<>(bq, BatchPolicy.<LogMsg>adaptive(
+            64, 500, 2000, TimeUnit.SECONDS.toNanos(5), TimeUnit.SECONDS.toNanos(5))
+            .withUrgent(msg -> msg.level == LEVEL.ERROR));
 
-    // 启动写日志线程（启动消费者线程）
+    // 启动写日志线程（启动消费者线程），日志写入临时文件
     public void start() throws IOException {
         // 创建日志文件
         File logFile = File.createTempFile("foo", ".log");
         // 开启文件流
-        FileWriter logFileWriter = new FileWriter(logFile);
+        start(new TextLogWriter(new FileWriter(logFile)));
+    }
+
+    // 启动写日志线程（启动消费者线程），日志写入指定的 LogWriter，例如基于内存映射文件的 MappedLog
+    public void start(LogWriter logWriter) {
         es.execute(()->{
+            List<LogMsg> batch = new ArrayList<>();
             try {
-                int curIdx = 0;
-                long preFT = System.currentTimeMillis();
-                while (true) {
-                    // 从阻塞队列取一条日志
-                    LogMsg msg = bq.poll(5, TimeUnit.SECONDS);
-
-                    // 如果是毒丸，终止线程的执行
-                    if (poisonPill.equals(msg)){
-                        break;
-                    }
-
-                    // 写日志
-                    if (msg != null) {
-                        logFileWriter.write(msg.toString());
-                        curIdx++;
-                    }
+                boolean stopped = false;
+                while (!stopped) {
+                    // 从阻塞队列批量取日志
+                    batch.clear();
+                    batcher.drain(batch);
 
-                    // 存在未刷盘的数据才刷盘
-                    if (curIdx <= 0) {
-                        continue;
-                    }
-                    // 根据规则判断是否刷盘
-                    if (msg != null && msg.level == LEVEL.ERROR ||
-                            curIdx == BATCH_SIZE ||
-                            System.currentTimeMillis() - preFT > 5000) {
-                        logFileWriter.flush();
-                        curIdx = 0;
-                        preFT = System.currentTimeMillis();
+                    long start = System.nanoTime();
+                    for (LogMsg msg : batch) {
+                        // 如果是毒丸，终止线程的执行（毒丸是紧急元素，一定是批次的最后一条）
+                        if (poisonPill.equals(msg)){
+                            stopped = true;
+                            break;
+                        }
+                        // 写日志
+                        logWriter.write(msg);
                     }
+                    // 一批日志只刷一次盘
+                    logWriter.flush();
+                    batcher.complete(batch.size(), System.nanoTime() - start);
                 }
             }catch (Exception e){
                 e.printStackTrace();
             }finally {
                 try {
                     // 线程被终止时，将所有已写入但是未刷盘的日志都落盘掉
-                    logFileWriter.flush();
+                    logWriter.flush();
                     // 关闭文件流
-                    logFileWriter.close();
+                    logWriter.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -187,6 +466,11 @@ class LoggerTool{
         });
     }
 
+    // 攒批统计：批次大小和攒批等待时间的直方图
+    public Batcher<LogMsg> batcher(){
+        return batcher;
+    }
+
     // 记录 info 级别日志
     public void info(String msg) throws InterruptedException {
         bq.put(new LogMsg(LEVEL.INFO, msg));
@@ -0,0 +1,556 @@
+package com.learn._03_concurrentDesignPattern;
+
+import com.learn.common.CommTools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 路由表的异常实例摘除（Outlier Ejection）和延迟感知的负载均衡
+ *
+ * 问题：
+ *  - _02_CopyAndWrite 中的 RouterTable 只能通过 remove(Router) 显式下线一个服务实例，
+ *    如果某个实例变慢或者频繁报错，所有客户端都会被这个实例拖慢尾延迟，直到有人手动下线它。
+ *
+ * 方案：
+ *  1）Router 仍然保持不可变（Immutability 模式），健康状态单独保存在 RouterHealth 中，
+ *     路由表读操作依旧无锁，健康状态的更新全部基于原子类完成。
+ *  2）RollingWindow：环形时间桶记录最近一段时间的请求数、错误数、延迟总和、最大延迟，
+ *     每个桶是 AtomicLongArray 中连续的几个槽位，过期的桶通过 CAS 桶的纪元（epoch）进行重置，无锁。
+ *  3）OutlierEjector：后台线程定期扫描每个接口下的实例，
+ *     错误率过高、平均延迟远高于同组实例中位数、或连续失败次数过多的实例会被摘除；
+ *     摘除时间按 base * 2^(n-1) 指数增长（n 为连续被摘除次数），到期后自动恢复（back-in），
+ *     并且同一接口下被摘除的实例数不会超过 maxEjectionPercent，避免把整个集群都摘掉：
+ *     每个接口一个原子计数器记录占用的摘除名额，先 CAS 占用名额再 CAS 摘除截止时间，并发摘除也不会超过上限。
+ *  4）RouterSelector：基于 P2C（Power of Two Choices）随机选两个实例，比较负载后选择更好的一个。
+ *     - EwmaSelector：比较延迟的指数加权移动平均值（EWMA）。
+ *     - PeakEwmaSelector：Finagle 的 Peak EWMA 算法，延迟突增时立即取峰值，随时间衰减，
+ *       并乘以 (在途请求数 + 1)，对慢实例和积压实例都很敏感。
+ */
+public class _10_RouterOutlierEjection {
+    public static void main(String[] args) throws InterruptedException {
+        RouterTable table = new RouterTable();
+        HealthAwareRouterTable healthTable = new HealthAwareRouterTable(
+                table, new PeakEwmaSelector(), OutlierEjector.Config.defaults());
+        String iFace = "com.learn.UserService";
+        Router fast1 = new Router("10.0.0.1", "8080", iFace);
+        Router fast2 = new Router("10.0.0.2", "8080", iFace);
+        Router slow = new Router("10.0.0.3", "8080", iFace);
+        Router broken = new Router("10.0.0.4", "8080", iFace);
+        for (Router router : Arrays.asList(fast1, fast2, slow, broken)) {
+            healthTable.add(router);
+        }
+        healthTable.start();
+
+        // 模拟客户端持续调用：slow 实例延迟 50ms，broken 实例 50% 报错
+        Map<Router, AtomicInteger> hits = new ConcurrentHashMap<>();
+        for (int i = 0; i < 600; i++) {
+            Router router = healthTable.select(iFace);
+            if (router == null) {
+                continue;
+            }
+            hits.computeIfAbsent(router, k -> new AtomicInteger()).incrementAndGet();
+            long start = healthTable.onStart(router);
+            boolean success = true;
+            if (router.equals(slow)) {
+                CommTools.sleep(50, TimeUnit.MILLISECONDS);
+            } else {
+                CommTools.sleep(1, TimeUnit.MILLISECONDS);
+                success = !router.equals(broken) || ThreadLocalRandom.current().nextBoolean();
+            }
+            healthTable.onComplete(router, start, success);
+        }
+        hits.forEach((router, count) -> System.out.println(
+                router.getIp() + " -> " + count + " 次，" + healthTable.health(router)));
+        healthTable.stop();
+    }
+}
+
+/**
+ * 环形时间桶：最近 buckets * bucketMillis 时间内的请求统计
+ *  - 每个桶占用 FIELDS 个 long 槽位：[纪元, 请求数, 错误数, 延迟总和, 最大延迟]
+ *  - 桶的纪元 = 当前时间 / 桶时长，当桶的纪元落后于当前纪元时，说明该桶已经过期，CAS 成功的线程负责清零。
+ *  - CAS 和清零之间并发写入的少量数据可能会丢失，对于统计数据这是可以接受的，换来的是记录路径完全无锁。
+ */
+class RollingWindow {
+    private static final int FIELDS = 5;
+    private static final int EPOCH = 0, TOTAL = 1, ERRORS = 2, LATENCY_SUM = 3, LATENCY_MAX = 4;
+
+    private final int buckets;
+    private final long bucketNanos;
+    private final AtomicLongArray data;
+
+    public RollingWindow(int buckets, long bucketMillis) {
+        this.buckets = buckets;
+        this.bucketNanos = TimeUnit.MILLISECONDS.toNanos(bucketMillis);
+        this.data = new AtomicLongArray(buckets * FIELDS);
+        for (int i = 0; i < buckets; i++) {
+            data.set(i * FIELDS + EPOCH, Long.MIN_VALUE);
+        }
+    }
+
+    // 记录一次请求的结果
+    public void record(long latencyNanos, boolean success) {
+        long epoch = Math.floorDiv(System.nanoTime(), bucketNanos);
+        int base = (int) Math.floorMod(epoch, (long) buckets) * FIELDS;
+        long cur = data.get(base + EPOCH);
+        if (cur != epoch && data.compareAndSet(base + EPOCH, cur, epoch)) {
+            // 抢到重置权的线程负责清零过期的桶
+            data.set(base + TOTAL, 0);
+            data.set(base + ERRORS, 0);
+            data.set(base + LATENCY_SUM, 0);
+            data.set(base + LATENCY_MAX, 0);
+        }
+        data.incrementAndGet(base + TOTAL);
+        if (!success) {
+            data.incrementAndGet(base + ERRORS);
+        }
+        data.addAndGet(base + LATENCY_SUM, latencyNanos);
+        long max;
+        while ((max = data.get(base + LATENCY_MAX)) < latencyNanos) {
+            if (data.compareAndSet(base + LATENCY_MAX, max, latencyNanos)) {
+                break;
+            }
+        }
+    }
+
+    // 汇总窗口内所有未过期的桶
+    public Snapshot snapshot() {
+        long nowEpoch = Math.floorDiv(System.nanoTime(), bucketNanos);
+        long total = 0, errors = 0, latencySum = 0, latencyMax = 0;
+        for (int i = 0; i < buckets; i++) {
+            int base = i * FIELDS;
+            long epoch = data.get(base + EPOCH);
+            if (epoch == Long.MIN_VALUE || nowEpoch - epoch >= buckets) {
+                continue;
+            }
+            total += data.get(base + TOTAL);
+            errors += data.get(base + ERRORS);
+            latencySum += data.get(base + LATENCY_SUM);
+            latencyMax = Math.max(latencyMax, data.get(base + LATENCY_MAX));
+        }
+        return new Snapshot(total, errors, latencySum, latencyMax);
+    }
+
+    static final class Snapshot {
+        final long total;
+        final long errors;
+        final long latencySum;
+        final long latencyMax;
+
+        Snapshot(long total, long errors, long latencySum, long latencyMax) {
+            this.total = total;
+            this.errors = errors;
+            this.latencySum = latencySum;
+            this.latencyMax = latencyMax;
+        }
+
+        double errorRate() {
+            return total == 0 ? 0.0 : (double) errors / total;
+        }
+
+        long meanLatencyNanos() {
+            return total == 0 ? 0L : latencySum / total;
+        }
+    }
+}
+
+/**
+ * 单个路由实例的健康状态（Router 本身不可变，可变状态都放在这里）
+ */
+class RouterHealth {
+    // EWMA 的平滑系数
+    private static final double ALPHA = 0.2;
+    // Peak EWMA 的衰减时间常数：10 秒
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    final RollingWindow window = new RollingWindow(10, 1000);
+    // 在途请求数
+    final AtomicInteger inflight = new AtomicInteger();
+    // 连续失败次数
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // 连续被摘除次数，用于计算指数增长的摘除时长
+    final AtomicInteger ejections = new AtomicInteger();
+    // 摘除截止时间（纳秒），0 表示未被摘除；非 0 时占用着所属接口的一个摘除名额，到期后 CAS 为 0 归还名额
+    final AtomicLong ejectedUntil = new AtomicLong();
+    // 最近一次摘除的截止时间，恢复后健康运行足够久时清空连续摘除次数
+    volatile long lastEjectedUntil;
+
+    // 延迟的 EWMA 和 Peak EWMA，double 以 long bits 形式存储，通过 CAS 更新
+    private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+    private final AtomicLong peakBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+    private volatile long peakStamp = System.nanoTime();
+
+    public void onComplete(long latencyNanos, boolean success) {
+        inflight.decrementAndGet();
+        window.record(latencyNanos, success);
+        if (success) {
+            consecutiveFailures.set(0);
+        } else {
+            consecutiveFailures.incrementAndGet();
+        }
+        updateEwma(latencyNanos);
+        updatePeakEwma(latencyNanos);
+    }
+
+    private void updateEwma(long latencyNanos) {
+        long prev, next;
+        do {
+            prev = ewmaBits.get();
+            double old = Double.longBitsToDouble(prev);
+            double value = old == 0.0 ? latencyNanos : old + ALPHA * (latencyNanos - old);
+            next = Double.doubleToRawLongBits(value);
+        } while (!ewmaBits.compareAndSet(prev, next));
+    }
+
+    // 延迟大于当前值时直接取峰值，否则按流逝的时间指数衰减地融合新值
+    private void updatePeakEwma(long latencyNanos) {
+        long now = System.nanoTime();
+        double w = Math.exp(-Math.max(now - peakStamp, 0L) / DECAY_NANOS);
+        peakStamp = now;
+        long prev, next;
+        do {
+            prev = peakBits.get();
+            double old = Double.longBitsToDouble(prev);
+            double value = latencyNanos > old ? latencyNanos : old * w + latencyNanos * (1 - w);
+            next = Double.doubleToRawLongBits(value);
+        } while (!peakBits.compareAndSet(prev, next));
+    }
+
+    public double ewma() {
+        return Double.longBitsToDouble(ewmaBits.get());
+    }
+
+    // Peak EWMA 负载：峰值延迟随时间衰减后，再乘以 (在途请求数 + 1)
+    public double peakEwmaLoad() {
+        double peak = Double.longBitsToDouble(peakBits.get());
+        double w = Math.exp(-Math.max(System.nanoTime() - peakStamp, 0L) / DECAY_NANOS);
+        int pending = inflight.get();
+        // 还没有延迟样本的新实例，用在途请求数作为负载，保证它们也能被选到
+        if (peak == 0.0) {
+            return pending;
+        }
+        return peak * w * (pending + 1);
+    }
+
+    public boolean isEjected(long now) {
+        long until = ejectedUntil.get();
+        return until != 0 && now - until < 0;
+    }
+
+    @Override
+    public String toString() {
+        RollingWindow.Snapshot s = window.snapshot();
+        return "RouterHealth{" +
+                "total=" + s.total +
+                ", errorRate=" + String.format("%.2f", s.errorRate()) +
+                ", meanLatency=" + TimeUnit.NANOSECONDS.toMillis(s.meanLatencyNanos()) + "ms" +
+                ", ewma=" + TimeUnit.NANOSECONDS.toMillis((long) ewma()) + "ms" +
+                ", ejections=" + ejections.get() +
+                ", ejected=" + isEjected(System.nanoTime()) +
+                '}';
+    }
+}
+
+/**
+ * 路由实例选择策略
+ */
+interface RouterSelector {
+    Router select(List<Router> candidates, HealthAwareRouterTable table);
+}
+
+/**
+ * P2C + 负载比较的选择策略模板
+ */
+abstract class P2CSelector implements RouterSelector {
+    @Override
+    public Router select(List<Router> candidates, HealthAwareRouterTable table) {
+        int size = candidates.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            j++;
+        }
+        Router a = candidates.get(i);
+        Router b = candidates.get(j);
+        return load(table.health(a)) <= load(table.health(b)) ? a : b;
+    }
+
+    // 已经下线的实例没有健康状态，负载视为无穷大
+    private double load(RouterHealth health) {
+        return health == null ? Double.MAX_VALUE : loadOf(health);
+    }
+
+    protected abstract double loadOf(RouterHealth health);
+}
+
+// 比较延迟 EWMA
+class EwmaSelector extends P2CSelector {
+    @Override
+    protected double loadOf(RouterHealth health) {
+        return health.ewma() * (health.inflight.get() + 1);
+    }
+}
+
+// 比较 Peak EWMA 负载
+class PeakEwmaSelector extends P2CSelector {
+    @Override
+    protected double loadOf(RouterHealth health) {
+        return health.peakEwmaLoad();
+    }
+}
+
+/**
+ * 异常实例检测器：定期扫描，摘除异常实例
+ */
+class OutlierEjector {
+
+    static final class Config {
+        // 扫描间隔
+        long intervalMillis = 1000;
+        // 窗口内最少请求数，样本过少时不做统计判断
+        long minRequests = 20;
+        // 错误率阈值
+        double maxErrorRate = 0.3;
+        // 平均延迟超过同组中位数的倍数
+        double latencyFactor = 3.0;
+        // 连续失败次数阈值（在记录路径上立即摘除）
+        int consecutiveFailures = 5;
+        // 基础摘除时长和最大摘除时长
+        long baseEjectionMillis = 1000;
+        long maxEjectionMillis = 30_000;
+        // 同一接口下最多摘除的实例比例
+        double maxEjectionPercent = 0.5;
+
+        static Config defaults() {
+            return new Config();
+        }
+    }
+
+    private final Config config;
+
+    OutlierEjector(Config config) {
+        this.config = config;
+    }
+
+    // 记录路径上的快速检测：连续失败次数过多立即摘除
+    void onFailure(String iFace, List<Router> peers, RouterHealth health, HealthAwareRouterTable table) {
+        if (health.consecutiveFailures.get() >= config.consecutiveFailures) {
+            tryEject(iFace, peers, health, table);
+        }
+    }
+
+    // 定期扫描某个接口下的所有实例
+    void scan(String iFace, List<Router> peers, HealthAwareRouterTable table) {
+        long now = System.nanoTime();
+        releaseExpired(iFace, peers, table, now);
+        List<Long> latencies = new ArrayList<>();
+        for (Router router : peers) {
+            RouterHealth health = table.health(router);
+            if (health == null) {
+                continue;
+            }
+            RollingWindow.Snapshot s = health.window.snapshot();
+            if (s.total >= config.minRequests) {
+                latencies.add(s.meanLatencyNanos());
+            }
+        }
+        latencies.sort(null);
+        long median = latencies.isEmpty() ? 0 : latencies.get(latencies.size() / 2);
+
+        for (Router router : peers) {
+            RouterHealth health = table.health(router);
+            if (health == null || health.isEjected(now)) {
+                continue;
+            }
+            RollingWindow.Snapshot s = health.window.snapshot();
+            boolean outlier = s.total >= config.minRequests && (
+                    s.errorRate() > config.maxErrorRate ||
+                    (latencies.size() >= 3 && median > 0
+                            && s.meanLatencyNanos() > median * config.latencyFactor));
+            if (outlier) {
+                tryEject(iFace, peers, health, table);
+            } else if (health.lastEjectedUntil != 0 &&
+                    now - health.lastEjectedUntil > TimeUnit.MILLISECONDS.toNanos(config.maxEjectionMillis)) {
+                // 恢复后健康运行足够久，清空摘除记录，下次摘除重新从基础时长开始
+                health.lastEjectedUntil = 0;
+                health.ejections.set(0);
+            }
+        }
+    }
+
+    private void tryEject(String iFace, List<Router> peers, RouterHealth health, HealthAwareRouterTable table) {
+        long now = System.nanoTime();
+        releaseExpired(iFace, peers, table, now);
+        long until = health.ejectedUntil.get();
+        if (until != 0) {
+            // 已经被摘除（或者刚被别的线程摘除）
+            return;
+        }
+        // 先 CAS 占用一个摘除名额，名额用完时放弃摘除
+        AtomicInteger ejected = table.ejectedCount(iFace);
+        int limit = (int) (peers.size() * config.maxEjectionPercent);
+        int count;
+        do {
+            count = ejected.get();
+            if (count + 1 > limit) {
+                return;
+            }
+        } while (!ejected.compareAndSet(count, count + 1));
+        // 摘除时长 base * 2^(n-1)，不超过最大摘除时长
+        int n = Math.min(health.ejections.get(), 20);
+        long millis = Math.min(config.baseEjectionMillis << n, config.maxEjectionMillis);
+        // 并发摘除同一个实例时只有一个线程 CAS 成功，其他线程归还名额
+        if (!health.ejectedUntil.compareAndSet(0, now + TimeUnit.MILLISECONDS.toNanos(millis))) {
+            ejected.decrementAndGet();
+            return;
+        }
+        health.ejections.incrementAndGet();
+        health.consecutiveFailures.set(0);
+    }
+
+    // 摘除已经到期的实例归还名额；到期到归还之间计数偏大，只会让摘除更保守，不会超过上限
+    private void releaseExpired(String iFace, List<Router> peers, HealthAwareRouterTable table, long now) {
+        for (Router peer : peers) {
+            RouterHealth health = table.health(peer);
+            if (health == null) {
+                continue;
+            }
+            long until = health.ejectedUntil.get();
+            if (until != 0 && now - until >= 0 && health.ejectedUntil.compareAndSet(until, 0)) {
+                health.lastEjectedUntil = until;
+                table.ejectedCount(iFace).decrementAndGet();
+            }
+        }
+    }
+}
+
+/**
+ * 带健康检查的路由表：组合 RouterTable，上线、下线仍然走原来的写时复制路由表，
+ * 选择实例时过滤掉被摘除的实例，再交给 RouterSelector 按负载选择。
+ */
+class HealthAwareRouterTable {
+    private final RouterTable table;
+    private final RouterSelector selector;
+    private final OutlierEjector ejector;
+    private final long scanIntervalMillis;
+    private final Map<Router, RouterHealth> healths = new ConcurrentHashMap<>();
+    private final Set<String> iFaces = ConcurrentHashMap.newKeySet();
+    // 每个接口当前占用的摘除名额
+    private final Map<String, AtomicInteger> ejectedCounts = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scanner;
+
+    public HealthAwareRouterTable(RouterTable table, RouterSelector selector, OutlierEjector.Config config) {
+        this.table = table;
+        this.selector = selector;
+        this.ejector = new OutlierEjector(config);
+        this.scanIntervalMillis = config.intervalMillis;
+    }
+
+    // 启动后台扫描线程
+    public synchronized void start() {
+        if (scanner != null) {
+            return;
+        }
+        scanner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "router-outlier-ejector");
+            t.setDaemon(true);
+            return t;
+        });
+        scanner.scheduleWithFixedDelay(() -> {
+            for (String iFace : iFaces) {
+                ejector.scan(iFace, peers(iFace), this);
+            }
+        }, scanIntervalMillis, scanIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scanner != null) {
+            scanner.shutdownNow();
+            scanner = null;
+        }
+    }
+
+    // 服务上线
+    public void add(Router router) {
+        healths.computeIfAbsent(router, k -> new RouterHealth());
+        iFaces.add(router.getiFace());
+        table.add(router);
+    }
+
+    // 服务下线
+    public void remove(Router router) {
+        table.remove(router);
+        RouterHealth health = healths.remove(router);
+        if (health != null && health.ejectedUntil.getAndSet(0) != 0) {
+            ejectedCount(router.getiFace()).decrementAndGet();
+        }
+    }
+
+    // 返回实例的健康状态，已经下线（或从未上线）的实例返回 null，迟到的回调不会让它重新出现
+    public RouterHealth health(Router router) {
+        return healths.get(router);
+    }
+
+    AtomicInteger ejectedCount(String iFace) {
+        return ejectedCounts.computeIfAbsent(iFace, k -> new AtomicInteger());
+    }
+
+    // 选择一个未被摘除的实例；如果全部被摘除（理论上受 maxEjectionPercent 限制不会发生），退化为全部实例
+    public Router select(String iFace) {
+        List<Router> peers = peers(iFace);
+        long now = System.nanoTime();
+        List<Router> candidates = new ArrayList<>(peers.size());
+        for (Router router : peers) {
+            RouterHealth health = health(router);
+            if (health != null && !health.isEjected(now)) {
+                candidates.add(router);
+            }
+        }
+        return selector.select(candidates.isEmpty() ? peers : candidates, this);
+    }
+
+    // 调用开始，返回开始时间
+    public long onStart(Router router) {
+        RouterHealth health = health(router);
+        if (health != null) {
+            health.inflight.incrementAndGet();
+        }
+        return System.nanoTime();
+    }
+
+    // 调用结束，记录延迟和结果；实例已经下线时忽略
+    public void onComplete(Router router, long startNanos, boolean success) {
+        RouterHealth health = health(router);
+        if (health == null) {
+            return;
+        }
+        health.onComplete(System.nanoTime() - startNanos, success);
+        if (!success) {
+            ejector.onFailure(router.getiFace(), peers(router.getiFace()), health, this);
+        }
+    }
+
+    private List<Router> peers(String iFace) {
+        Set<Router> routers = table.get(iFace);
+        return routers == null ? new ArrayList<>() : new ArrayList<>(routers);
+    }
+}
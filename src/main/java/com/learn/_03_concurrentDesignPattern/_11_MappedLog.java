@@ -0,0 +1,59 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 基于内存映射文件（MappedByteBuffer）的追加写日志（Write-Ahead Log）
+ *
+ * 问题：
+ *  - _09_ProducerConsumer 中的 LoggerTool 通过 FileWriter 写入 LogMsg.toString()，
+ *    每条日志都要拼接一次字符串，再经过 Writer 的字符编码和缓冲区拷贝，吞吐量上不去。
+ *
+ * 方案：
+ *  1）文件按固定大小分段（segment），每个分段整体映射到内存，写日志就是往映射内存里 put 字节，
+ *     由操作系统负责把脏页写回磁盘，没有系统调用开销。
+ *  2）二进制记录格式，每条记录带 CRC32 校验，重启时从最后一个分段恢复写入位置，残缺的尾部记录会被丢弃：
+ *     [int 载荷长度][int CRC32][long 时间戳][byte 日志级别][载荷 UTF-8 字节]
+ *     CRC32 覆盖 时间戳 + 级别 + 载荷。
+ *  3）组提交（group commit）：append() 只写映射内存，commit() 时才调用一次 force() 刷盘，
+ *     消费者线程一批日志只刷一次盘。
+ *  4）分段写满后自动刷盘并滚动到下一个分段。
+ *  5）消息直接从 CharSequence 编码到可复用的字节数组中，不会为每条日志构建 String。
+ *
+ * 注意：MappedLog 不是线程安全的，设计为只被一个写线程（例如 LoggerTool 的消费者线程）使用。
+ * MappedLog 还被 _12_RingLogger、_13_LogRouting 用作日志的写入目标，实现放在 MappedLog.java 中。
+ */
+public class _11_MappedLog {
+    public static void main(String[] args) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "mapped-log-" + System.nanoTime());
+        int count = 2_000_000;
+        StringBuilder msg = new StringBuilder();
+        try (MappedLog log = MappedLog.open(dir, 64 * 1024 * 1024)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                msg.setLength(0);
+                msg.append("order paid, id=").append(i);
+                log.append(i % 1000 == 0 ? LEVEL.ERROR : LEVEL.INFO, System.currentTimeMillis(), msg);
+                // 每 500 条组提交一次
+                if (i % 500 == 499) {
+                    log.commit();
+                }
+            }
+            log.commit();
+            long cost = System.nanoTime() - start;
+            System.out.println("写入 " + count + " 条，耗时 " + cost / 1000_000 + " ms，"
+                    + (long) (count / (cost / 1e9)) + " 条/秒，分段数：" + log.segmentCount());
+        }
+
+        // 重新打开，校验所有记录
+        long[] stat = new long[2];
+        MappedLog.replay(dir, (level, timestamp, payload, offset, length) -> {
+            stat[0]++;
+            if (level == LEVEL.ERROR) {
+                stat[1]++;
+            }
+        });
+        System.out.println("回放 " + stat[0] + " 条，其中 ERROR " + stat[1] + " 条");
+    }
+}
@@ -0,0 +1,450 @@
+package com.learn._03_concurrentDesignPattern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无垃圾（garbage-free）的异步日志：预分配的环形事件槽位（参考 Disruptor 和 Log4j2 的异步日志）
+ *
+ * 问题：
+ *  - LoggerTool.info()/error() 每次调用都要 new 一个 LogMsg，再放入容量为 2000 的 LinkedBlockingQueue，
+ *    LinkedBlockingQueue 入队还要再分配一个链表节点；队列满时调用方直接被阻塞，没有其他选择。
+ *
+ * 方案：
+ *  1）RingBuffer 在启动时一次性预分配所有 LogEvent 槽位，生产者通过 CAS 抢占序号，
+ *     直接改写槽位中的字段，然后在 available 数组中标记发布，整个过程没有任何对象分配。
+ *  2）参数化消息：调用方只传入 "order {} paid {}" 这样的模板和参数引用，
+ *     字符串的格式化延迟到消费者线程中执行，生产者不需要拼接字符串。
+ *     提供固定参数个数的重载，避免可变参数带来的数组分配；long 参数单独存放，避免装箱。
+ *  3）消费者线程一次处理一批已发布的事件，按照 LoggerTool 相同的规则刷盘（ERROR、满 500 条、5 秒）。
+ *     事件时间在生产者线程上记录，通过 LogWriter.write(level, timestamp, msg) 原样写入，而不是写入时的时间；
+ *     单条事件格式化或写入失败只计数，消费者线程继续运行，否则消费进度停滞，BLOCK 策略的生产者会被永久阻塞。
+ *  4）队列满时的策略 QueueFullPolicy：
+ *     - BLOCK：阻塞等待空闲槽位；
+ *     - DROP_INFO：丢弃 INFO 日志，ERROR 日志仍然阻塞等待；
+ *     - SYNC：调用方线程直接同步写入（和消费者线程互斥），可能与队列中的日志乱序。
+ */
+public class _12_RingLogger {
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "ring-logger-" + System.nanoTime());
+        RingLogger logger = new RingLogger(8192, QueueFullPolicy.BLOCK, MappedLog.open(dir, 64 * 1024 * 1024));
+        logger.start();
+
+        int threads = 4;
+        int perThread = 1_000_000;
+        CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            String name = "producer-" + t;
+            new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    if (i % 100_000 == 0) {
+                        logger.error("{} reached {}", name, i);
+                    } else {
+                        logger.info("order {} paid by {}", i, name);
+                    }
+                }
+                latch.countDown();
+            }, name).start();
+        }
+        latch.await();
+        logger.stop();
+        long cost = System.nanoTime() - start;
+        System.out.println("写入 " + threads * perThread + " 条，耗时 " + cost / 1000_000 + " ms，丢弃 "
+                + logger.dropped() + " 条，写入失败 " + logger.failed() + " 条");
+    }
+}
+
+/**
+ * 可复用的日志事件槽位
+ */
+final class LogEvent {
+    LEVEL level;
+    long timestamp;
+    String pattern;
+    // 参数个数和参数；longArg 用于 long 类型参数，避免装箱
+    int argCount;
+    Object arg0;
+    Object arg1;
+    Object arg2;
+    long longArg;
+    boolean hasLongArg;
+
+    void set(LEVEL level, String pattern, int argCount, Object arg0, Object arg1, Object arg2) {
+        this.level = level;
+        this.timestamp = System.currentTimeMillis();
+        this.pattern = pattern;
+        this.argCount = argCount;
+        this.arg0 = arg0;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.hasLongArg = false;
+    }
+
+    void setLong(LEVEL level, String pattern, long longArg, Object arg1) {
+        set(level, pattern, 2, null, arg1, null);
+        this.longArg = longArg;
+        this.hasLongArg = true;
+    }
+
+    // 消费完后清空引用，避免槽位长期持有参数对象
+    void clear() {
+        pattern = null;
+        arg0 = null;
+        arg1 = null;
+        arg2 = null;
+    }
+
+    // 把 "{}" 占位符替换为参数，追加到可复用的 StringBuilder 中
+    void formatTo(StringBuilder sb) {
+        String p = pattern;
+        int argIdx = 0;
+        int from = 0;
+        int at;
+        while (argIdx < argCount && (at = p.indexOf("{}", from)) >= 0) {
+            sb.append(p, from, at);
+            if (argIdx == 0 && hasLongArg) {
+                sb.append(longArg);
+            } else {
+                sb.append(argIdx == 0 ? arg0 : argIdx == 1 ? arg1 : arg2);
+            }
+            argIdx++;
+            from = at + 2;
+        }
+        sb.append(p, from, p.length());
+    }
+}
+
+class RingLogger {
+    // 批量刷盘的条数和时间间隔（和 LoggerTool 的刷盘规则一致）
+    private static final int BATCH_SIZE = 500;
+    private static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+    private final LogEvent[] ring;
+    private final int mask;
+    private final int indexShift;
+    // 每个槽位当前发布的轮次，消费者据此判断槽位是否已发布
+    private final AtomicIntegerArray available;
+    // 生产者已经抢占的最大序号
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // 消费者已经处理完的最大序号
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final QueueFullPolicy policy;
+    private final LogWriter writer;
+    // 消费者线程和 SYNC 策略下的调用方线程互斥使用 writer
+    private final Object writeLock = new Object();
+    private final StringBuilder consumerBuffer = new StringBuilder(256);
+
+    private volatile boolean running;
+    // 在 running 置为 true 之前赋值，读到 running 为 true 的线程一定能看到它
+    private Thread consumer;
+
+    public RingLogger(int bufferSize, QueueFullPolicy policy, LogWriter writer) {
+        if (Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of 2");
+        }
+        this.ring = new LogEvent[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            ring[i] = new LogEvent();
+        }
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        this.available = new AtomicIntegerArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            available.set(i, -1);
+        }
+        this.policy = policy;
+        this.writer = writer;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        consumer = new Thread(this::consume, "ring-logger");
+        running = true;
+        consumer.start();
+    }
+
+    // 停止：消费者处理完所有已发布的事件后刷盘并关闭 writer
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        consumer.join();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    /* 参数化日志接口：固定参数个数的重载，避免可变参数分配数组 */
+    public void info(String pattern) {
+        publish(LEVEL.INFO, pattern, 0, null, null, null, false, 0);
+    }
+
+    public void info(String pattern, Object arg0) {
+        publish(LEVEL.INFO, pattern, 1, arg0, null, null, false, 0);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1) {
+        publish(LEVEL.INFO, pattern, 2, arg0, arg1, null, false, 0);
+    }
+
+    public void info(String pattern, Object arg0, Object arg1, Object arg2) {
+        publish(LEVEL.INFO, pattern, 3, arg0, arg1, arg2, false, 0);
+    }
+
+    // 第一个参数为 long 的重载，避免装箱
+    public void info(String pattern, long arg0, Object arg1) {
+        publish(LEVEL.INFO, pattern, 2, null, arg1, null, true, arg0);
+    }
+
+    public void error(String pattern) {
+        publish(LEVEL.ERROR, pattern, 0, null, null, null, false, 0);
+    }
+
+    public void error(String pattern, Object arg0) {
+        publish(LEVEL.ERROR, pattern, 1, arg0, null, null, false, 0);
+    }
+
+    public void error(String pattern, Object arg0, Object arg1) {
+        publish(LEVEL.ERROR, pattern, 2, arg0, arg1, null, false, 0);
+    }
+
+    public void error(String pattern, long arg0, Object arg1) {
+        publish(LEVEL.ERROR, pattern, 2, null, arg1, null, true, arg0);
+    }
+
+    private void publish(LEVEL level, String pattern, int argCount, Object arg0, Object arg1, Object arg2,
+                         boolean hasLongArg, long longArg) {
+        if (!running) {
+            throw new IllegalStateException("logger is not running");
+        }
+        long seq = tryClaim();
+        if (seq < 0) {
+            // 队列已满，按照策略处理
+            if (policy == QueueFullPolicy.DROP_INFO && level == LEVEL.INFO) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (policy == QueueFullPolicy.SYNC) {
+                writeSync(level, pattern, argCount, arg0, arg1, arg2, hasLongArg, longArg);
+                return;
+            }
+            seq = claimBlocking();
+        }
+        LogEvent event = ring[(int) seq & mask];
+        if (hasLongArg) {
+            event.setLong(level, pattern, longArg, arg1);
+        } else {
+            event.set(level, pattern, argCount, arg0, arg1, arg2);
+        }
+        // 发布：写入槽位的轮次，lazySet 保证之前对槽位字段的写入对消费者可见
+        available.lazySet((int) seq & mask, (int) (seq >>> indexShift));
+        if (!running) {
+            checkConsumedAfterStop(seq);
+        }
+    }
+
+    // 抢占序号和 stop() 并发：消费者可能在抢占之前就做完了最后一次检查并退出，这条日志不会再被写入。
+    // 抢占之后才读到 running 为 false 时，等消费者退出，再根据消费进度判断是否写入，没有写入的计为丢弃
+    private void checkConsumedAfterStop(long seq) {
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            // 无法判断是否写入，只恢复中断标记
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (consumed.get() < seq) {
+            dropped.incrementAndGet();
+            throw new IllegalStateException("logger is not running");
+        }
+    }
+
+    // 尝试抢占一个序号，没有空闲槽位时返回 -1
+    private long tryClaim() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - ring.length > consumed.get()) {
+                return -1;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // 阻塞直到抢占到序号：短暂自旋后让出 CPU，再退化为短时间休眠
+    private long claimBlocking() {
+        int spins = 0;
+        long seq;
+        while ((seq = tryClaim()) < 0) {
+            if (!running) {
+                throw new IllegalStateException("logger is not running");
+            }
+            if (++spins < 100) {
+                continue;
+            }
+            if (spins < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        return seq;
+    }
+
+    // SYNC 策略：在调用方线程中直接写入
+    private void writeSync(LEVEL level, String pattern, int argCount, Object arg0, Object arg1, Object arg2,
+                           boolean hasLongArg, long longArg) {
+        LogEvent event = new LogEvent();
+        if (hasLongArg) {
+            event.setLong(level, pattern, longArg, arg1);
+        } else {
+            event.set(level, pattern, argCount, arg0, arg1, arg2);
+        }
+        StringBuilder sb = new StringBuilder();
+        event.formatTo(sb);
+        synchronized (writeLock) {
+            try {
+                writer.write(level, event.timestamp, sb);
+                writer.flush();
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 消费者线程：批量处理已发布的事件
+    private void consume() {
+        long next = consumed.get() + 1;
+        int unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+        int idle = 0;
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long published = highestPublished(next, cursor.get());
+                if (published < next) {
+                    // 停止时只有在没有任何已抢占的序号时才退出，保证已发布的日志不会丢失
+                    if (stopping && cursor.get() < next) {
+                        break;
+                    }
+                    if (unflushed > 0 && System.currentTimeMillis() - lastFlush > FLUSH_INTERVAL_MILLIS) {
+                        flushQuietly();
+                        unflushed = 0;
+                        lastFlush = System.currentTimeMillis();
+                    }
+                    idle = waitFor(idle);
+                    continue;
+                }
+                idle = 0;
+                boolean needFlush = false;
+                Exception error = null;
+                synchronized (writeLock) {
+                    for (long seq = next; seq <= published; seq++) {
+                        LogEvent event = ring[(int) seq & mask];
+                        // 单条事件失败不能让消费者线程退出，否则消费进度停滞，生产者会被永久阻塞
+                        try {
+                            consumerBuffer.setLength(0);
+                            event.formatTo(consumerBuffer);
+                            writer.write(event.level, event.timestamp, consumerBuffer);
+                            unflushed++;
+                        } catch (IOException | RuntimeException e) {
+                            failed.incrementAndGet();
+                            error = e;
+                        } finally {
+                            needFlush |= event.level == LEVEL.ERROR;
+                            event.clear();
+                        }
+                    }
+                }
+                if (error != null) {
+                    // 一批只打印最后一个异常，避免写入目标持续失败时刷屏
+                    error.printStackTrace();
+                }
+                // 批量处理完再推进消费进度，释放槽位给生产者
+                consumed.lazySet(published);
+                next = published + 1;
+                if (needFlush || unflushed >= BATCH_SIZE ||
+                        System.currentTimeMillis() - lastFlush > FLUSH_INTERVAL_MILLIS) {
+                    flushQuietly();
+                    unflushed = 0;
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // 消费者意外退出时拒绝新的日志，阻塞中的生产者也会退出等待
+            running = false;
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 从 next 开始连续已发布的最大序号
+    private long highestPublished(long next, long claimed) {
+        for (long seq = next; seq <= claimed; seq++) {
+            if (available.get((int) seq & mask) != (int) (seq >>> indexShift)) {
+                return seq - 1;
+            }
+        }
+        return claimed;
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            writer.flush();
+        }
+    }
+
+    // 刷盘失败同样不能让消费者线程退出
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 消费者的等待策略：自旋 -> 让出 CPU -> 短时间休眠
+    private int waitFor(int idle) {
+        if (idle < 100) {
+            return idle + 1;
+        }
+        if (idle < 200) {
+            Thread.yield();
+            return idle + 1;
+        }
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        return idle;
+    }
+}
@@ -0,0 +1,491 @@
+package com.learn._03_concurrentDesignPattern;
+
+import com.learn.common.CommTools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按日志级别路由到多个输出目标（sink），每个 sink 独立异步批量写入
+ *
+ * 问题：
+ *  - LoggerTool 只有一个消费者线程，只能写一个临时文件；
+ *    ERROR 日志需要可靠落盘，INFO 日志追求吞吐，两者混在一起只能按最严格的规则刷盘。
+ *
+ * 方案：
+ *  1）LogSink：一个 sink = 有界队列 + 独立的批量写线程 + LogWriter + 刷盘规则 + 队列满策略。
+ *     每个 sink 的队列和线程互不影响，一个慢 sink（例如同步刷盘的文件）只会让自己的队列积压，
+ *     不会拖慢其他 sink 的消费。
+ *  2）RoutingLogger：按 LEVEL 配置路由表，一条日志扇出（fan-out）到该级别对应的所有 sink。
+ *     扇出在调用方线程上依次进行，所以每个 sink 的 offer 都不能无限阻塞：
+ *     队列满时 BLOCK 策略（以及 DROP_INFO 策略下的 ERROR 日志）最多等待 maxBlock 时间，超时计为丢弃，
+ *     尽力而为的 sink 把 maxBlock 设为 0，这样它的队列满了也不会拖慢调用方和其他 sink。
+ *     sink 停止后的 offer 会被拒绝，不会出现写线程已经退出、调用方还在等待队列空位的情况。
+ *  3）内置的 LogWriter：
+ *     - RollingFileLogWriter：带缓冲的文本文件，超过大小滚动，可选每次刷盘时 fsync；
+ *     - MappedLog：内存映射的分段日志（_11_MappedLog）；
+ *     - MemoryRingLogWriter：内存中的环形缓冲区，只保留最近 N 条，便于测试断言；
+ *     - StdoutLogWriter：标准输出。
+ */
+public class _13_LogRouting {
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "log-routing-" + System.nanoTime());
+        // ERROR：每批写完都 fsync 的滚动文件，队列满时最多阻塞 1 秒
+        LogSink durable = new LogSink("error-file", new RollingFileLogWriter(dir, "error", 1024 * 1024, 3, true),
+                1024, QueueFullPolicy.BLOCK, true, 1, TimeUnit.SECONDS);
+        // INFO：内存映射日志，按批量刷盘，队列满时丢弃 INFO
+        LogSink fast = new LogSink("info-mmap", MappedLog.open(new File(dir, "info"), 16 * 1024 * 1024),
+                8192, QueueFullPolicy.DROP_INFO, false);
+        // 所有级别：内存环形缓冲区，保留最近 5 条
+        MemoryRingLogWriter memory = new MemoryRingLogWriter(5);
+        LogSink recent = new LogSink("memory", memory, 1024, QueueFullPolicy.DROP_INFO, false);
+        // 模拟一个很慢的 sink：标准输出，每批写完后睡眠 100ms；尽力而为，队列满时 ERROR 也直接丢弃
+        LogSink slow = new LogSink("stdout", new StdoutLogWriter(System.out) {
+            @Override
+            public void flush() {
+                super.flush();
+                CommTools.sleep(100, TimeUnit.MILLISECONDS);
+            }
+        }, 16, QueueFullPolicy.DROP_INFO, true, 0, TimeUnit.MILLISECONDS);
+
+        RoutingLogger logger = new RoutingLogger();
+        logger.route(LEVEL.ERROR, durable, recent, slow);
+        logger.route(LEVEL.INFO, fast, recent, slow);
+        logger.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 2_000 == 0) {
+                logger.error("error " + i);
+            } else {
+                logger.info("info " + i);
+            }
+        }
+        System.out.println("调用方耗时 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        logger.stop();
+
+        for (LogSink sink : new LogSink[]{durable, fast, recent, slow}) {
+            System.out.println(sink);
+        }
+        System.out.println("最近的日志：" + memory.snapshot());
+    }
+}
+
+/**
+ * 日志输出目标：有界队列 + 独立的批量写线程
+ */
+class LogSink {
+    // 单批最多写入的条数
+    private static final int MAX_BATCH = 512;
+    // 非 durable 模式下的刷盘规则：满 500 条或者超过 5 秒
+    private static final int FLUSH_COUNT = 500;
+    private static final long FLUSH_INTERVAL_MILLIS = 5000;
+    // 默认的最长阻塞时间
+    private static final long DEFAULT_MAX_BLOCK_MILLIS = 1000;
+    // 阻塞等待队列空位时，每隔多久检查一次 sink 是否已经停止
+    private static final long STOP_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String name;
+    private final LogWriter writer;
+    private final BlockingQueue<LogMsg> queue;
+    private final QueueFullPolicy policy;
+    // durable 模式：每批写完都刷盘（组提交），适合 ERROR 日志
+    private final boolean durable;
+    // 队列满时调用方最多等待的时间，超时计为丢弃
+    private final long maxBlockNanos;
+    // 写线程和 SYNC 策略下的调用方线程互斥使用 writer
+    private final Object writeLock = new Object();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private volatile boolean stopped;
+    private Thread worker;
+
+    public LogSink(String name, LogWriter writer, int capacity, QueueFullPolicy policy, boolean durable) {
+        this(name, writer, capacity, policy, durable, DEFAULT_MAX_BLOCK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public LogSink(String name, LogWriter writer, int capacity, QueueFullPolicy policy, boolean durable,
+                   long maxBlock, TimeUnit unit) {
+        this.name = name;
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.durable = durable;
+        this.maxBlockNanos = Math.max(0, unit.toNanos(maxBlock));
+    }
+
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(this::work, "log-sink-" + name);
+        worker.start();
+    }
+
+    // 停止接收新日志，等待队列中的日志全部写完后关闭 writer
+    public synchronized void stop() throws InterruptedException {
+        stopped = true;
+        if (worker != null) {
+            worker.join();
+        }
+    }
+
+    // 提交一条日志，队列满时按策略处理；除了 SYNC 策略，调用方最多等待 maxBlock 时间
+    public void offer(LogMsg msg) throws InterruptedException {
+        if (stopped) {
+            throw new IllegalStateException("sink " + name + " is stopped");
+        }
+        if (!queue.offer(msg)) {
+            switch (policy) {
+                case DROP_INFO:
+                    if (msg.level == LEVEL.INFO) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    if (!offerWithin(msg)) {
+                        return;
+                    }
+                    break;
+                case SYNC:
+                    synchronized (writeLock) {
+                        try {
+                            writer.write(msg);
+                            writer.flush();
+                            written.incrementAndGet();
+                        } catch (IOException | RuntimeException e) {
+                            failed.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                    }
+                    return;
+                default:
+                    if (!offerWithin(msg)) {
+                        return;
+                    }
+            }
+        }
+        // 入队和 stop() 并发：写线程可能已经退出，这条日志不会再被写入，撤回并拒绝
+        if (stopped && queue.remove(msg)) {
+            dropped.incrementAndGet();
+            throw new IllegalStateException("sink " + name + " is stopped");
+        }
+    }
+
+    // 限时等待队列空位，超时计为丢弃返回 false；等待期间 sink 被停止时拒绝
+    private boolean offerWithin(LogMsg msg) throws InterruptedException {
+        long start = System.nanoTime();
+        long remaining = maxBlockNanos;
+        while (remaining > 0) {
+            if (queue.offer(msg, Math.min(remaining, STOP_CHECK_NANOS), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            if (stopped) {
+                throw new IllegalStateException("sink " + name + " is stopped");
+            }
+            remaining = maxBlockNanos - (System.nanoTime() - start);
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void work() {
+        List<LogMsg> batch = new ArrayList<>(MAX_BATCH);
+        int unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+        try {
+            while (true) {
+                LogMsg first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (stopped && queue.isEmpty()) {
+                        break;
+                    }
+                } else {
+                    batch.add(first);
+                    // 一次取出队列中已有的日志，批量写入
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    boolean hasError = false;
+                    int ok = 0;
+                    Exception error = null;
+                    synchronized (writeLock) {
+                        for (LogMsg msg : batch) {
+                            hasError |= msg.level == LEVEL.ERROR;
+                            // 单条日志写入失败不能让写线程退出，否则队列再也不会被消费，
+                            // 调用方每次 offer() 都要等满 maxBlock，拖慢路由到其他 sink 的日志
+                            try {
+                                writer.write(msg);
+                                ok++;
+                            } catch (IOException | RuntimeException e) {
+                                failed.incrementAndGet();
+                                error = e;
+                            }
+                        }
+                    }
+                    if (error != null) {
+                        // 一批只打印最后一个异常，避免写入目标持续失败时刷屏
+                        error.printStackTrace();
+                    }
+                    written.addAndGet(ok);
+                    batches.incrementAndGet();
+                    unflushed += ok;
+                    batch.clear();
+                    if (durable || hasError || unflushed >= FLUSH_COUNT) {
+                        flushQuietly();
+                        unflushed = 0;
+                        lastFlush = System.currentTimeMillis();
+                    }
+                }
+                if (unflushed > 0 && System.currentTimeMillis() - lastFlush > FLUSH_INTERVAL_MILLIS) {
+                    flushQuietly();
+                    unflushed = 0;
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 写线程退出后拒绝新的日志，等待队列空位的调用方也会退出等待
+            stopped = true;
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            writer.flush();
+        }
+    }
+
+    // 刷盘失败同样不能让写线程退出
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogSink{" +
+                "name='" + name + '\'' +
+                ", written=" + written.get() +
+                ", dropped=" + dropped.get() +
+                ", failed=" + failed.get() +
+                ", batches=" + batches.get() +
+                '}';
+    }
+}
+
+/**
+ * 按日志级别路由的日志工具
+ */
+class RoutingLogger {
+    private final Map<LEVEL, List<LogSink>> routes = new EnumMap<>(LEVEL.class);
+    private final List<LogSink> sinks = new ArrayList<>();
+
+    // 配置某个级别的日志输出到哪些 sink，需要在 start() 之前调用
+    public synchronized RoutingLogger route(LEVEL level, LogSink... targets) {
+        List<LogSink> list = routes.computeIfAbsent(level, k -> new ArrayList<>());
+        for (LogSink sink : targets) {
+            list.add(sink);
+            if (!sinks.contains(sink)) {
+                sinks.add(sink);
+            }
+        }
+        return this;
+    }
+
+    public synchronized void start() {
+        for (LogSink sink : sinks) {
+            sink.start();
+        }
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        for (LogSink sink : sinks) {
+            sink.stop();
+        }
+    }
+
+    public void info(String msg) throws InterruptedException {
+        log(new LogMsg(LEVEL.INFO, msg));
+    }
+
+    public void error(String msg) throws InterruptedException {
+        log(new LogMsg(LEVEL.ERROR, msg));
+    }
+
+    // 扇出到该级别对应的所有 sink
+    private void log(LogMsg msg) throws InterruptedException {
+        List<LogSink> targets = routes.get(msg.level);
+        if (targets == null) {
+            return;
+        }
+        for (LogSink sink : targets) {
+            sink.offer(msg);
+        }
+    }
+}
+
+/**
+ * 滚动文本文件：文件超过 maxBytes 后滚动到下一个文件，只保留最近 maxFiles 个文件
+ */
+class RollingFileLogWriter implements LogWriter {
+    private final File dir;
+    private final String prefix;
+    private final long maxBytes;
+    private final int maxFiles;
+    // 每次 flush 时是否调用 fsync 强制落盘
+    private final boolean fsync;
+    private int index;
+    private long bytes;
+    private FileOutputStream out;
+    private Writer writer;
+
+    public RollingFileLogWriter(File dir, String prefix, long maxBytes, int maxFiles, boolean fsync)
+            throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create dir: " + dir);
+        }
+        this.dir = dir;
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.fsync = fsync;
+        open();
+    }
+
+    @Override
+    public void write(LogMsg msg) throws IOException {
+        write(msg.level, msg.msg);
+    }
+
+    @Override
+    public void write(LEVEL level, CharSequence msg) throws IOException {
+        if (bytes >= maxBytes) {
+            roll();
+        }
+        writer.append(level.name()).append(' ').append(msg).append('\n');
+        // 按字符数估算文件大小
+        bytes += level.name().length() + msg.length() + 2;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+        if (fsync) {
+            out.getFD().sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        writer.close();
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(new File(dir, prefix + "." + index + ".log"), true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        bytes = 0;
+    }
+
+    private void roll() throws IOException {
+        close();
+        index++;
+        File expired = new File(dir, prefix + "." + (index - maxFiles) + ".log");
+        if (expired.exists() && !expired.delete()) {
+            throw new IOException("can not delete " + expired);
+        }
+        open();
+    }
+}
+
+/**
+ * 内存环形缓冲区：只保留最近 capacity 条日志，便于测试中断言日志内容
+ */
+class MemoryRingLogWriter implements LogWriter {
+    private final String[] ring;
+    private long count;
+
+    public MemoryRingLogWriter(int capacity) {
+        this.ring = new String[capacity];
+    }
+
+    @Override
+    public synchronized void write(LogMsg msg) {
+        ring[(int) (count++ % ring.length)] = msg.level + " " + msg.msg;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // 按写入顺序返回最近的日志
+    public synchronized List<String> snapshot() {
+        List<String> result = new ArrayList<>(ring.length);
+        long from = Math.max(0, count - ring.length);
+        for (long i = from; i < count; i++) {
+            result.add(ring[(int) (i % ring.length)]);
+        }
+        return result;
+    }
+}
+
+/**
+ * 标准输出
+ */
+class StdoutLogWriter implements LogWriter {
+    private final PrintStream out;
+
+    public StdoutLogWriter(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(LogMsg msg) {
+        out.append(msg.level.name()).append(' ').append(msg.msg).append('\n');
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+    // 标准输出不关闭
+    @Override
+    public void close() {
+        out.flush();
+    }
+}
@@ -0,0 +1,77 @@
+package com.learn._03_concurrentDesignPattern;
+
+import com.learn.common.CommTools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可复用的批量攒批引擎（生产者-消费者模式中消费者批量获取任务的通用实现）
+ *
+ * 问题：
+ *  - BatchExecution.pollTasks() 队列里有多少就取多少，批量大小完全不受控制；
+ *  - LoggerTool 固定 500 条或 5 秒刷一次盘，负载高时 500 条太小，负载低时一条日志可能要等 5 秒。
+ *
+ * 方案：Batcher 从阻塞队列中攒批，一个批次在以下任意条件满足时结束：
+ *  1）批次条数达到当前的批量上限（max-size）；
+ *  2）批次的估算字节数达到 maxBytes（max-bytes）；
+ *  3）从取到第一个元素开始，等待时间达到当前的最长等待时间（max-linger）；
+ *  4）遇到「紧急」元素（例如 ERROR 日志），立即结束当前批次。
+ *
+ * 自适应模式（targetLatency > 0）：
+ *  - 消费者处理完一个批次后调用 complete() 反馈处理耗时，批次延迟 = 攒批等待时间 + 处理时间。
+ *  - 批次延迟超过目标延迟（SLO）：批量上限和等待时间都乘性减小；
+ *  - 批次被攒满（说明负载高）且延迟满足 SLO：批量上限加性增大，用更大的批次摊薄单次处理的固定开销；
+ *  - 批次远没有攒满（说明负载低）：批量上限和等待时间逐步缩小，避免空等。
+ *
+ * 统计：批次大小和攒批等待时间（微秒）各有一个直方图，用于观察攒批效果。
+ *
+ * Batcher 和 BatchPolicy 被 _09_ProducerConsumer、_15_StagedPipeline 共用，放在各自的源文件中。
+ */
+public class _14_AdaptiveBatcher {
+    public static void main(String[] args) throws InterruptedException {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>(10_000);
+        Batcher<Integer> batcher = new Batcher<>(queue, BatchPolicy.<Integer>adaptive(
+                8, 64, 2048, TimeUnit.MILLISECONDS.toNanos(20), TimeUnit.MILLISECONDS.toNanos(50)));
+
+        Thread consumer = new Thread(() -> {
+            List<Integer> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.clear();
+                    batcher.drain(batch);
+                    if (batch.contains(-1)) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    // 模拟批量处理：固定开销 2ms + 每条 10us
+                    CommTools.sleep(2000 + batch.size() * 10L, TimeUnit.MICROSECONDS);
+                    batcher.complete(batch.size(), System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+
+        // 先低负载，再高负载，最后回到低负载，观察批量上限的变化
+        int[] rates = {200, 50_000, 200};
+        for (int rate : rates) {
+            long end = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < end) {
+                for (int i = 0; i < rate / 100; i++) {
+                    queue.put(i);
+                }
+                CommTools.sleep(10, TimeUnit.MILLISECONDS);
+            }
+            System.out.println("rate=" + rate + "/s -> " + batcher);
+        }
+        queue.put(-1);
+        consumer.join();
+        System.out.println("batch size: " + batcher.batchSizes());
+        System.out.println("linger(us): " + batcher.lingers());
+    }
+}
@@ -0,0 +1,367 @@
+package com.learn._03_concurrentDesignPattern;
+
+import com.learn.common.CommTools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 多阶段流水线：生产者-消费者模式的级联
+ *
+ * 问题：
+ *  - _09_ProducerConsumer 只有一个生产者阶段和一个消费者阶段，CPU 计算和 I/O 操作只能串行地挤在一个线程里执行。
+ *
+ * 方案：把处理过程拆成多个类型安全的阶段：source -> map -> filter -> batch -> sink
+ *  1）每个阶段有自己的并行度（线程数），CPU 密集的阶段和 I/O 密集的阶段可以分别配置；
+ *  2）相邻阶段之间通过有界阻塞队列交接数据，下游处理不过来时上游阻塞在 put() 上，
+ *     压力逐级向上传导到 source（端到端的背压），内存占用有上界；
+ *  3）结束标记（EOS）沿着流水线向下传递：一个阶段的所有线程都处理完之后，才向下游发送结束标记；
+ *  4）任意阶段抛出异常，整条流水线失败并中断所有线程，await() 抛出 ExecutionException；
+ *  5）每个阶段统计输入条数、输出条数、队列深度、吞吐量和阻塞在下游队列上的时间（背压时间）。
+ *
+ * batch 阶段复用 _14_AdaptiveBatcher 中的 Batcher 攒批。
+ */
+public class _15_StagedPipeline {
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int count = 200_000;
+        List<Integer> source = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            source.add(i);
+        }
+
+        // 串行执行：计算 + 过滤 + 每 500 条一次 I/O，全部在一个线程中
+        long[] serialSum = new long[1];
+        System.out.print("serial ");
+        CommTools.countTimeExec(() -> {
+            List<Long> batch = new ArrayList<>();
+            for (Integer i : source) {
+                long v = cpuWork(i);
+                if (v % 3 != 0) {
+                    batch.add(v);
+                }
+                if (batch.size() == 500) {
+                    serialSum[0] += ioWork(batch);
+                    batch.clear();
+                }
+            }
+            serialSum[0] += ioWork(batch);
+        });
+
+        // 流水线执行：计算 4 个线程，I/O 4 个线程
+        LongAdder pipelineSum = new LongAdder();
+        PipelineJob job = Pipeline.from("source", source)
+                .map("compute", 4, 1024, _15_StagedPipeline::cpuWork)
+                .filter("filter", 2, 1024, v -> v % 3 != 0)
+                .batch("batch", 1024, 500, 5, TimeUnit.MILLISECONDS)
+                .sink("save", 4, 8, batch -> pipelineSum.add(ioWork(batch)));
+        long start = System.nanoTime();
+        job.start();
+        // 运行过程中定期观察各阶段的队列深度
+        while (!job.await(200, TimeUnit.MILLISECONDS)) {
+            System.out.println(job.metrics());
+        }
+        long pipelined = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(job.metrics());
+        System.out.println("serial sum=" + serialSum[0]);
+        System.out.println("pipeline: " + pipelined + " ms, sum=" + pipelineSum.sum());
+    }
+
+    // 模拟 CPU 密集的计算
+    private static long cpuWork(int i) {
+        long h = i;
+        for (int k = 0; k < 200; k++) {
+            h = h * 31 + (h >>> 7) + k;
+        }
+        return h & 0xFFFF;
+    }
+
+    // 模拟 I/O：每批固定 2ms
+    private static long ioWork(List<Long> batch) {
+        CommTools.sleep(2, TimeUnit.MILLISECONDS);
+        long sum = 0;
+        for (Long v : batch) {
+            sum += v;
+        }
+        return sum;
+    }
+}
+
+/**
+ * 流水线构建器：每调用一次 map/filter/batch 追加一个阶段，调用 sink 结束构建
+ */
+final class Pipeline<T> {
+    private final List<PipelineStage> stages;
+    // 每个 Pipeline 只能追加一次下游阶段：追加时会改写最后一个阶段的输出队列，不支持分叉
+    private boolean used;
+
+    private Pipeline(List<PipelineStage> stages) {
+        this.stages = stages;
+    }
+
+    // 数据源阶段：单线程遍历 source
+    static <T> Pipeline<T> from(String name, Iterable<? extends T> source) {
+        List<PipelineStage> stages = new ArrayList<>();
+        stages.add(new PipelineStage(name, 1, 0, stage -> {
+            Iterator<? extends T> it = source.iterator();
+            while (it.hasNext()) {
+                stage.emit(it.next());
+            }
+        }));
+        return new Pipeline<>(stages);
+    }
+
+    @SuppressWarnings("unchecked")
+    <R> Pipeline<R> map(String name, int parallelism, int capacity, Function<? super T, ? extends R> fn) {
+        return then(new PipelineStage(name, parallelism, capacity, stage -> {
+            Object item;
+            while ((item = stage.take()) != null) {
+                stage.emit(fn.apply((T) item));
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    Pipeline<T> filter(String name, int parallelism, int capacity, Predicate<? super T> predicate) {
+        return then(new PipelineStage(name, parallelism, capacity, stage -> {
+            Object item;
+            while ((item = stage.take()) != null) {
+                if (predicate.test((T) item)) {
+                    stage.emit(item);
+                }
+            }
+        }));
+    }
+
+    // 攒批阶段（单线程）：每 batchSize 条或者等待 linger 之后输出一个批次
+    Pipeline<List<T>> batch(String name, int capacity, int batchSize, long linger, TimeUnit unit) {
+        PipelineStage batchStage = new PipelineStage(name, 1, capacity, null);
+        Batcher<Object> batcher = new Batcher<>(batchStage.input,
+                BatchPolicy.fixed(batchSize, unit.toNanos(linger)).withUrgent(PipelineStage::isEnd));
+        batchStage.body = stage -> {
+            while (true) {
+                List<Object> batch = new ArrayList<>(batchSize);
+                batcher.drain(batch);
+                boolean end = PipelineStage.isEnd(batch.get(batch.size() - 1));
+                if (end) {
+                    batch.remove(batch.size() - 1);
+                }
+                stage.received(batch.size());
+                if (!batch.isEmpty()) {
+                    stage.emit(batch);
+                }
+                if (end) {
+                    return;
+                }
+            }
+        };
+        return then(batchStage);
+    }
+
+    // 终点阶段，返回未启动的流水线作业
+    @SuppressWarnings("unchecked")
+    PipelineJob sink(String name, int parallelism, int capacity, Consumer<? super T> consumer) {
+        Pipeline<T> pipeline = then(new PipelineStage(name, parallelism, capacity, stage -> {
+            Object item;
+            while ((item = stage.take()) != null) {
+                consumer.accept((T) item);
+                stage.completed();
+            }
+        }));
+        return new PipelineJob(pipeline.stages);
+    }
+
+    private <R> Pipeline<R> then(PipelineStage next) {
+        if (used) {
+            throw new IllegalStateException("pipeline step already has a downstream stage");
+        }
+        used = true;
+        List<PipelineStage> nextStages = new ArrayList<>(stages);
+        nextStages.get(nextStages.size() - 1).output = next.input;
+        nextStages.add(next);
+        return new Pipeline<>(nextStages);
+    }
+}
+
+/**
+ * 流水线中的一个阶段：一个有界输入队列 + parallelism 个工作线程
+ */
+final class PipelineStage {
+    // 结束标记
+    private static final Object END = new Object();
+
+    final String name;
+    final int parallelism;
+    final BlockingQueue<Object> input;
+    BlockingQueue<Object> output;
+    Body body;
+
+    private final AtomicInteger active;
+    private final LongAdder in = new LongAdder();
+    private final LongAdder out = new LongAdder();
+    // 阻塞在下游队列上的累计时间（背压）
+    private final LongAdder blockedNanos = new LongAdder();
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    interface Body {
+        void run(PipelineStage stage) throws Exception;
+    }
+
+    PipelineStage(String name, int parallelism, int capacity, Body body) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.name = name;
+        this.parallelism = parallelism;
+        this.input = capacity > 0 ? new ArrayBlockingQueue<>(capacity) : null;
+        this.body = body;
+        this.active = new AtomicInteger(parallelism);
+    }
+
+    static boolean isEnd(Object item) {
+        return item == END;
+    }
+
+    // 获取一条数据，遇到结束标记时返回 null，并把结束标记放回队列，让同一阶段的其他线程也能看到
+    Object take() throws InterruptedException {
+        Object item = input.take();
+        if (item == END) {
+            input.put(END);
+            return null;
+        }
+        in.increment();
+        return item;
+    }
+
+    void received(int n) {
+        in.add(n);
+    }
+
+    // 向下游输出一条数据，下游队列满时阻塞（背压）
+    void emit(Object item) throws InterruptedException {
+        if (!output.offer(item)) {
+            long start = System.nanoTime();
+            output.put(item);
+            blockedNanos.add(System.nanoTime() - start);
+        }
+        out.increment();
+    }
+
+    // 终点阶段处理完一条数据
+    void completed() {
+        out.increment();
+    }
+
+    void started() {
+        startNanos = System.nanoTime();
+    }
+
+    // 一个工作线程正常结束，最后一个结束的线程负责向下游发送结束标记
+    void workerDone() throws InterruptedException {
+        if (active.decrementAndGet() == 0) {
+            endNanos = System.nanoTime();
+            if (output != null) {
+                output.put(END);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        double seconds = Math.max(1, end - startNanos) / 1e9;
+        int depth = input == null ? 0 : input.size();
+        int capacity = input == null ? 0 : depth + input.remainingCapacity();
+        return String.format("%-8s x%d in=%-8d out=%-8d queue=%d/%d %.0f/s blocked=%dms%s",
+                name, parallelism, in.sum(), out.sum(), depth, capacity, out.sum() / seconds,
+                TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum()), endNanos != 0 ? " done" : "");
+    }
+}
+
+/**
+ * 流水线作业：启动、等待结束、取消和观察各阶段指标
+ */
+final class PipelineJob {
+    private final List<PipelineStage> stages;
+    private final List<Thread> threads = new ArrayList<>();
+    private final CountDownLatch done;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    PipelineJob(List<PipelineStage> stages) {
+        this.stages = new ArrayList<>(stages);
+        int total = 0;
+        for (PipelineStage stage : stages) {
+            total += stage.parallelism;
+        }
+        this.done = new CountDownLatch(total);
+    }
+
+    public synchronized void start() {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("pipeline already started");
+        }
+        for (PipelineStage stage : stages) {
+            stage.started();
+            for (int i = 0; i < stage.parallelism; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        stage.body.run(stage);
+                        stage.workerDone();
+                    } catch (InterruptedException e) {
+                        // 被取消或者其他阶段失败
+                    } catch (Throwable e) {
+                        fail(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }, stage.name + "-" + i);
+                threads.add(t);
+            }
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+    }
+
+    // 等待流水线结束，返回是否已经结束；任意阶段失败时抛出 ExecutionException
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+        boolean finished = done.await(timeout, unit);
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return finished;
+    }
+
+    public void cancel() {
+        fail(new InterruptedException("pipeline cancelled"));
+    }
+
+    private void fail(Throwable cause) {
+        if (failure.compareAndSet(null, cause)) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    public String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (PipelineStage stage : stages) {
+            sb.append(stage).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.learn._04_concurrentCaseAnalysis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶容量为 1 的令牌桶算法模拟
+ * 支持突发、超时和预热的无锁实现见 _02_TokenBucketLimiter
+ */
+class SimpleLimiter{
+    // 下一令牌产生时间
+    long next = System.nanoTime();
+
+    // 发放令牌的间隔：纳秒
+    // 限流到每秒执行一个任务
+    long interval = 1000_000_000;
+
+    // 预占令牌，返回能够获取令牌的时间
+    public synchronized long reserve(long now){
+        /* 请求时间在令牌生成后 */
+        if (now > next){
+            next = now;
+        }
+        /* 请求时间在令牌生成前 */
+        // 能够获取令牌的时间
+        long at = next;
+        // 设置下一个令牌的时间
+        next += interval;
+        // 返回能够获取令牌的时间
+        return Math.max(at, 0L);
+    }
+
+    // 申请令牌
+    public void acquire(){
+        // 申请令牌的时间（请求时间）
+        long now = System.nanoTime();
+        // 预占令牌
+        long at = reserve(now);
+        long waitTime = Math.max(at - now, 0L);
+        // 按照条件等待
+        // 请求时间在令牌生成前，at > now 需要需要等待一定时间到 next
+        // 请求时间在令牌生成后，at == now 不需要等待马上可以拿到
+        if (waitTime > 0){
+            try {
+                // waitTime 的单位是纳秒
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.learn._04_concurrentCaseAnalysis;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁的令牌桶限流器
+ *
+ * 问题：
+ *  - _01_RateLimiter 中的 SimpleLimiter 令牌桶容量只有 1，只能配置 1 秒 1 个令牌，不支持突发流量；
+ *  - reserve() 是 synchronized 的，大量线程同时申请令牌时在同一把锁上排队（lock convoy）；
+ *  - 没有 tryAcquire(timeout)，也没有预热。
+ *
+ * 方案（TokenBucketLimiter，按照 Guava SmoothRateLimiter 的模型实现）：
+ *  1）状态只有两个值：下一个令牌可以发放的时间 nextFree 和桶中存储的令牌数 stored，
+ *     放在一个不可变的 State 对象中，用 AtomicReference 的 CAS 整体替换，没有锁；
+ *  2）申请令牌时先按照空闲的时间补充令牌（最多 maxPermits 个），优先消耗存储的令牌，不够的部分按照稳定速率预支，
+ *     预支的等待时间由下一个请求承担（和 Guava 一样，当前请求立即在 nextFree 时刻拿到令牌）；
+ *  3）tryAcquire(n, timeout)：nextFree 超过 now + timeout 时直接失败，不修改状态；
+ *  4）预热（等价于 Guava 的 SmoothWarmingUp）：桶满说明系统冷了一段时间，这时每个令牌的间隔是稳定间隔的 3 倍，
+ *     随着令牌被消耗，间隔线性下降到稳定间隔，经过 warmupPeriod 后达到稳定速率；
+ *  5）等待使用 LockSupport.parkNanos，离截止时间很近时改为自旋，精度达到微秒级（SimpleLimiter 把纳秒当成秒 sleep）。
+ */
+public class _02_TokenBucketLimiter {
+    public static void main(String[] args) throws InterruptedException {
+        // 1 吞吐量：8 个线程不停地申请令牌（速率足够大，不需要等待），对比加锁的实现
+        int threads = 8;
+        int perThread = 1_000_000;
+        SimpleLimiter simple = new SimpleLimiter();
+        simple.interval = 1;
+        bench("SimpleLimiter", threads, perThread, () -> simple.reserve(System.nanoTime()));
+        RateLimiter guava = RateLimiter.create(1e9);
+        bench("Guava", threads, perThread, guava::tryAcquire);
+        TokenBucketLimiter bucket = TokenBucketLimiter.create(1e9, 1000);
+        bench("TokenBucket", threads, perThread, () -> bucket.tryAcquire(1, 0, TimeUnit.NANOSECONDS));
+
+        // 2 突发：每秒 5 个令牌，桶容量 3，空闲之后前 3 个请求立即通过，之后每 200ms 一个
+        TokenBucketLimiter bursty = TokenBucketLimiter.create(5, 3);
+        printIntervals("bursty", bursty, 8);
+
+        // 3 预热：稳定速率每秒 10 个，预热 1 秒，间隔从 300ms 逐渐下降到 100ms
+        TokenBucketLimiter warmingUp = TokenBucketLimiter.create(10, 1, TimeUnit.SECONDS);
+        printIntervals("warmup", warmingUp, 14);
+
+        // 4 超时：等待时间超过 50ms 的请求直接失败
+        TokenBucketLimiter slow = TokenBucketLimiter.create(10, 1);
+        int passed = 0;
+        for (int i = 0; i < 10; i++) {
+            if (slow.tryAcquire(1, 50, TimeUnit.MILLISECONDS)) {
+                passed++;
+            }
+        }
+        System.out.println("tryAcquire(50ms): " + passed + "/10 passed");
+    }
+
+    private static void bench(String name, int threads, int perThread, Runnable acquire) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    acquire.run();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        long cost = System.nanoTime() - start;
+        System.out.printf("%-14s %6.1f M acquire/s%n", name, threads * (double) perThread * 1000 / cost);
+    }
+
+    private static void printIntervals(String name, TokenBucketLimiter limiter, int count) {
+        StringBuilder sb = new StringBuilder(name).append(":");
+        long prev = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            limiter.acquire(1);
+            long now = System.nanoTime();
+            sb.append(' ').append((now - prev) / 1_000_000);
+            prev = now;
+        }
+        System.out.println(sb.append(" (ms)"));
+    }
+}
+
+/**
+ * 基于 CAS 的令牌桶限流器，线程安全且无锁
+ */
+class TokenBucketLimiter {
+    // 离截止时间不到 SPIN_THRESHOLD 时不再 park，改为自旋，避免 park 的唤醒延迟
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(50);
+    // 预热时冷启动间隔是稳定间隔的倍数（和 Guava 相同）
+    private static final double COLD_FACTOR = 3.0;
+
+    private final double stableInterval;
+    private final double maxPermits;
+    // 存储的令牌数在 thresholdPermits 以上时按照预热曲线计算间隔
+    private final double thresholdPermits;
+    // 预热曲线的斜率：存储的令牌每多一个，间隔增加多少纳秒
+    private final double slope;
+    // 空闲时每隔多久补充一个令牌
+    private final double coolDownInterval;
+    private final boolean warmup;
+    private final AtomicReference<State> state;
+
+    private final LongAdder rejected = new LongAdder();
+
+    private TokenBucketLimiter(double permitsPerSecond, double maxPermits, double thresholdPermits,
+                               double coolDownInterval, boolean warmup, double initialPermits) {
+        this.stableInterval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.maxPermits = maxPermits;
+        this.thresholdPermits = thresholdPermits;
+        this.coolDownInterval = coolDownInterval;
+        this.warmup = warmup;
+        double coldInterval = stableInterval * COLD_FACTOR;
+        this.slope = warmup ? (coldInterval - stableInterval) / (maxPermits - thresholdPermits) : 0;
+        this.state = new AtomicReference<>(new State(System.nanoTime(), initialPermits));
+    }
+
+    /**
+     * 稳定速率 permitsPerSecond，桶容量 burst（空闲之后最多可以立即拿到 burst 个令牌），初始时桶是满的
+     */
+    public static TokenBucketLimiter create(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        double stableInterval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        return new TokenBucketLimiter(permitsPerSecond, burst, burst, stableInterval, false, burst);
+    }
+
+    /**
+     * 带预热的限流器：冷启动时按照稳定速率的 1/3 发放令牌，经过 warmupPeriod 逐渐提升到 permitsPerSecond
+     */
+    public static TokenBucketLimiter create(double permitsPerSecond, long warmupPeriod, TimeUnit unit) {
+        if (permitsPerSecond <= 0 || warmupPeriod <= 0) {
+            throw new IllegalArgumentException("rate and warmup period must be positive");
+        }
+        double stableInterval = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        double warmupNanos = unit.toNanos(warmupPeriod);
+        // 和 Guava 的 SmoothWarmingUp 相同：预热曲线下方的面积（从 maxPermits 消耗到 thresholdPermits 的总耗时）等于 warmupPeriod
+        double thresholdPermits = 0.5 * warmupNanos / stableInterval;
+        double maxPermits = thresholdPermits + 2.0 * warmupNanos / (stableInterval + stableInterval * COLD_FACTOR);
+        return new TokenBucketLimiter(permitsPerSecond, maxPermits, thresholdPermits,
+                warmupNanos / maxPermits, true, maxPermits);
+    }
+
+    /**
+     * 申请 permits 个令牌，必要时等待（不响应中断），返回等待的纳秒数
+     */
+    public long acquire(int permits) {
+        checkPermits(permits);
+        long now = System.nanoTime();
+        long at = reserve(permits, now, Long.MAX_VALUE);
+        return at > now ? waitUntil(at, now) : 0;
+    }
+
+    /**
+     * 在 timeout 内能够拿到 permits 个令牌时预占并等待到令牌发放的时刻，返回 true；否则立即返回 false，不消耗令牌
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+        checkPermits(permits);
+        long now = System.nanoTime();
+        long at = reserve(permits, now, Math.max(0, unit.toNanos(timeout)));
+        if (at == Long.MIN_VALUE) {
+            rejected.increment();
+            return false;
+        }
+        if (at > now) {
+            waitUntil(at, now);
+        }
+        return true;
+    }
+
+    /**
+     * 预占令牌，返回令牌发放的时刻；发放时刻晚于 now + timeout 时返回 Long.MIN_VALUE
+     */
+    private long reserve(int permits, long now, long timeout) {
+        while (true) {
+            State current = state.get();
+            long nextFree = current.nextFree;
+            double stored = current.stored;
+            // 按照空闲的时间补充令牌
+            if (now > nextFree) {
+                stored = Math.min(maxPermits, stored + (now - nextFree) / coolDownInterval);
+                nextFree = now;
+            }
+            if (nextFree - now > timeout) {
+                return Long.MIN_VALUE;
+            }
+            double spend = Math.min(permits, stored);
+            double fresh = permits - spend;
+            long wait = (long) (storedPermitsToWaitTime(stored, spend) + fresh * stableInterval);
+            State next = new State(saturatedAdd(nextFree, wait), stored - spend);
+            if (state.compareAndSet(current, next)) {
+                return nextFree;
+            }
+        }
+    }
+
+    // 从 stored 个存储的令牌中消耗 spend 个需要的时间：突发模式下存储的令牌可以立即使用，预热模式下是预热曲线下方的面积
+    private double storedPermitsToWaitTime(double stored, double spend) {
+        if (!warmup) {
+            return 0;
+        }
+        double aboveThreshold = stored - thresholdPermits;
+        double nanos = 0;
+        if (aboveThreshold > 0) {
+            double taken = Math.min(aboveThreshold, spend);
+            double length = permitsToTime(aboveThreshold) + permitsToTime(aboveThreshold - taken);
+            nanos = taken * length / 2.0;
+            spend -= taken;
+        }
+        return nanos + stableInterval * spend;
+    }
+
+    private double permitsToTime(double permits) {
+        return stableInterval + permits * slope;
+    }
+
+    // 等待到 at 时刻：先 park，离截止时间很近时自旋；和 Guava 一样不响应中断，中断标记会保留
+    private static long waitUntil(long at, long start) {
+        long remaining;
+        while ((remaining = at - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            } else {
+                Thread.yield();
+            }
+        }
+        return Math.max(0, at - start);
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return ((a ^ r) & (b ^ r)) < 0 ? Long.MAX_VALUE : r;
+    }
+
+    private static void checkPermits(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive: " + permits);
+        }
+    }
+
+    public double getRate() {
+        return TimeUnit.SECONDS.toNanos(1) / stableInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucketLimiter{rate=" + getRate() + ", maxPermits=" + maxPermits +
+                ", rejected=" + rejected + '}';
+    }
+
+    private static final class State {
+        final long nextFree;
+        final double stored;
+
+        State(long nextFree, double stored) {
+            this.nextFree = nextFree;
+            this.stored = stored;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.learn._04_concurrentCaseAnalysis;
+
+import com.learn.common.HashTables;
+import com.learn.common.Long2LongMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按租户（API key）限流的限流器
+ *
+ * 问题：
+ *  - _01_RateLimiter 只演示了一个全局的 RateLimiter.create(2.0)，而按客户配额限流需要几百万个限流器；
+ *  - 每个租户一个 Guava RateLimiter 对象放在 ConcurrentHashMap 中，每个租户要占用上百字节，
+ *    并且不再活跃的租户永远不会被清理。
+ *
+ * 方案（KeyedRateLimiter）：
+ *  1）每个租户的令牌桶只需要一个 long：GCRA（通用信元速率算法）中的理论到达时间 tat，
+ *     请求到达时 tat = max(tat, now) + n × interval，只要 tat - now 不超过 burst × interval 就放行；
+ *     键和 tat 一共两个 long，存放在基本类型的开放寻址哈希表 Long2LongMap 中，没有装箱和 Entry 对象；
+ *  2）租户第一次出现时才创建（相当于一个满的桶）；
+ *  3）分段锁：按照键的哈希值高位把租户分到 2 的幂个段中，每个段一张 Long2LongMap 和一把锁，
+ *     不同段的租户互不竞争，段内只做一次哈希查找和一次写入，持锁时间很短；
+ *  4）tat 早于 now - ttl 的桶早已装满，和不存在的桶完全等价，后台任务定期删除这些桶，删除不会改变限流的结果；
+ *  5）字符串形式的 API key 用 64 位哈希转换成 long 键，不保存字符串本身（极小概率的哈希冲突会让两个租户共享配额）。
+ */
+public class _03_KeyedRateLimiter {
+    public static void main(String[] args) throws InterruptedException {
+        // 每个租户每秒 10 个请求，允许突发 5 个，空闲 1 秒的桶会被回收
+        KeyedRateLimiter limiter = new KeyedRateLimiter(10, 5, 1, TimeUnit.SECONDS);
+
+        // 1 一个租户连续请求 2 秒：突发 5 个 + 每秒 10 个，大约放行 25 个
+        int passed = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < end) {
+            if (limiter.tryAcquire("api-key-hot", 1)) {
+                passed++;
+            }
+        }
+        System.out.println("hot tenant passed in 2s: " + passed);
+
+        // 2 8 个线程对 100 万个租户随机请求
+        int threads = 8;
+        int perThread = 1_000_000;
+        int tenants = 1_000_000;
+        LongAdder granted = new LongAdder();
+        CountDownLatch latch = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ok = 0;
+                for (int j = 0; j < perThread; j++) {
+                    if (limiter.tryAcquire(random.nextInt(tenants), 1)) {
+                        ok++;
+                    }
+                }
+                granted.add(ok);
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        long cost = System.nanoTime() - start;
+        System.out.printf("%.1f M acquire/s, granted=%d, buckets=%d%n",
+                threads * (double) perThread * 1000 / cost, granted.sum(), limiter.size());
+
+        // 3 空闲超过 ttl 之后，后台任务回收所有的桶
+        Thread.sleep(2500);
+        System.out.println("buckets after idle: " + limiter.size() + ", evicted=" + limiter.evicted());
+        limiter.close();
+    }
+}
+
+/**
+ * 基于 GCRA 和分段的 Long2LongMap 的多租户限流器
+ */
+class KeyedRateLimiter implements AutoCloseable {
+    // 离截止时间不到 SPIN_THRESHOLD 时改为自旋
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // 每个令牌的间隔
+    private final long interval;
+    // 桶容量对应的时间：tat 最多可以领先 now 这么多
+    private final long burstNanos;
+    private final long ttlNanos;
+    private final int burst;
+    // tat 保存为相对于 base 的值（总是大于 0），0 表示桶不存在
+    private final long base = System.nanoTime();
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final ScheduledExecutorService evictor;
+    private final LongAdder evicted = new LongAdder();
+    // 回收时收集过期键的缓冲区，只有回收线程访问
+    private long[] idleKeys = new long[64];
+    private int idleCount;
+
+    /**
+     * @param permitsPerSecond 每个租户的稳定速率
+     * @param burst            每个租户的桶容量
+     * @param ttl              桶空闲（已经装满）超过该时间后被回收
+     */
+    KeyedRateLimiter(double permitsPerSecond, int burst, long ttl, TimeUnit unit) {
+        this(permitsPerSecond, burst, ttl, unit, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    KeyedRateLimiter(double permitsPerSecond, int burst, long ttl, TimeUnit unit, int concurrency) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("rate and burst must be positive");
+        }
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burst = burst;
+        this.burstNanos = interval * burst;
+        this.ttlNanos = unit.toNanos(ttl);
+        int n = Integer.highestOneBit(Math.max(2, concurrency) - 1) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        // Long2LongMap 用哈希值的低位定位槽位，这里用高位选择段，避免同一段中的键都挤在相邻的槽位上
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "keyed-limiter-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(100), ttlNanos / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 立即判断，不等待
+     */
+    public boolean tryAcquire(long key, int permits) {
+        return reserve(key, permits, System.nanoTime(), 0) >= 0;
+    }
+
+    public boolean tryAcquire(String key, int permits) {
+        return tryAcquire(hash(key), permits);
+    }
+
+    /**
+     * timeout 内能够拿到令牌时预占并等待到放行的时刻，返回 true；否则立即返回 false，不消耗令牌
+     */
+    public boolean tryAcquire(long key, int permits, long timeout, TimeUnit unit) {
+        long now = System.nanoTime();
+        long wait = reserve(key, permits, now, Math.max(0, unit.toNanos(timeout)));
+        if (wait < 0) {
+            return false;
+        }
+        long deadline = now + wait;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            } else {
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 预占令牌，返回需要等待的纳秒数；需要等待的时间超过 timeout 时返回 -1
+     */
+    private long reserve(long key, int permits, long now, long timeout) {
+        if (permits <= 0 || permits > burst) {
+            throw new IllegalArgumentException("permits must be in [1, " + burst + "]: " + permits);
+        }
+        long relativeNow = now - base;
+        Stripe stripe = stripes[HashTables.mix(key) >>> stripeShift];
+        stripe.lock.lock();
+        try {
+            long tat = stripe.buckets.get(key);
+            long newTat = Math.max(tat, relativeNow) + permits * interval;
+            // 放行时刻：newTat - burstNanos
+            long wait = newTat - burstNanos - relativeNow;
+            if (wait > timeout) {
+                return -1;
+            }
+            stripe.buckets.put(key, newTat);
+            return Math.max(0, wait);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // 删除 tat 早于 now - ttl 的桶：这些桶已经装满，和不存在的桶等价
+    private void evictIdle() {
+        for (Stripe stripe : stripes) {
+            idleCount = 0;
+            stripe.lock.lock();
+            try {
+                long expired = System.nanoTime() - base - ttlNanos;
+                // 遍历时不能删除，先收集再删除
+                stripe.buckets.forEach((key, tat) -> {
+                    if (tat < expired) {
+                        if (idleCount == idleKeys.length) {
+                            idleKeys = Arrays.copyOf(idleKeys, idleCount * 2);
+                        }
+                        idleKeys[idleCount++] = key;
+                    }
+                });
+                for (int i = 0; i < idleCount; i++) {
+                    stripe.buckets.remove(idleKeys[i]);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            evicted.add(idleCount);
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.buckets.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public long evicted() {
+        return evicted.sum();
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+    }
+
+    // 字符串键的 64 位哈希（FNV-1a 之后再打散）
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Long2LongMap buckets = new Long2LongMap();
+    }
+}
@@ -0,0 +1,40 @@
+package com.learn.common;
+
+/**
+ * 开放寻址哈希表（Object2IntMap、Long2LongMap、Int2IntMap）共用的工具方法
+ */
+public final class HashTables {
+    private HashTables() {
+    }
+
+    /**
+     * 打散哈希值（乘以黄金分割常数后高低位异或），避免线性探测时连续的键聚集在一起
+     */
+    public static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public static int mix(long h) {
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 能够容纳 expected 个元素的最小容量（2 的幂）
+     */
+    public static int capacity(int expected, float loadFactor) {
+        long needed = (long) Math.ceil(Math.max(2, expected) / loadFactor);
+        if (needed > (1 << 30)) {
+            throw new IllegalArgumentException("too large: " + expected);
+        }
+        return Math.max(4, Integer.highestOneBit((int) needed - 1) << 1);
+    }
+
+    /**
+     * 扩容前最多可以存放的元素个数，至少留一个空槽位保证探测能够结束
+     */
+    public static int maxFill(int capacity, float loadFactor) {
+        return Math.min((int) Math.ceil(capacity * loadFactor), capacity - 1);
+    }
+}
@@ -0,0 +1,248 @@
+package com.learn.common;
+
+import java.util.Arrays;
+
+/**
+ * long 键到 long 值的开放寻址哈希表（线性探测），替代 HashMap<Long, Long>
+ *  - 键和值存放在两个平行的基本类型数组中，没有装箱，也没有 Entry 对象；
+ *  - 0 作为空槽位的标记，键 0 单独存放；
+ *  - addTo() 原地累加，addAll() 批量合并，删除时向前移动后续的键（backward shift）。
+ * 不是线程安全的。
+ */
+public class Long2LongMap {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+    private int maxFill;
+    // 键 0 单独存放
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    public Long2LongMap() {
+        this(16);
+    }
+
+    public Long2LongMap(int expected) {
+        allocate(HashTables.capacity(expected, LOAD_FACTOR));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        maxFill = HashTables.maxFill(capacity, LOAD_FACTOR);
+    }
+
+    public long get(long key) {
+        return getOrDefault(key, 0);
+    }
+
+    public long getOrDefault(long key, long defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int slot = find(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZeroKey : find(key) >= 0;
+    }
+
+    /**
+     * 设置键对应的值，返回旧值，不存在时返回 0
+     */
+    public long put(long key, long value) {
+        if (key == 0) {
+            long old = zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            insert(slot, key, value);
+            return 0;
+        }
+        long old = values[slot];
+        values[slot] = value;
+        return old;
+    }
+
+    /**
+     * 原地累加，返回累加后的值
+     */
+    public long addTo(long key, long delta) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            return zeroValue += delta;
+        }
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            insert(slot, key, delta);
+            return delta;
+        }
+        return values[slot] += delta;
+    }
+
+    /**
+     * 删除键，返回旧值，不存在时返回 0
+     */
+    public long remove(long key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                return 0;
+            }
+            hasZeroKey = false;
+            size--;
+            long old = zeroValue;
+            zeroValue = 0;
+            return old;
+        }
+        int slot = find(key);
+        if (slot < 0) {
+            return 0;
+        }
+        long old = values[slot];
+        size--;
+        shiftKeys(slot);
+        return old;
+    }
+
+    /**
+     * 把另一张表原地累加到当前表中
+     */
+    public void addAll(Long2LongMap other) {
+        if (size + other.size > maxFill) {
+            rehash(HashTables.capacity(size + other.size, LOAD_FACTOR));
+        }
+        if (other.hasZeroKey) {
+            addTo(0, other.zeroValue);
+        }
+        long[] otherKeys = other.keys;
+        long[] otherValues = other.values;
+        for (int i = 0; i < otherKeys.length; i++) {
+            if (otherKeys[i] != 0) {
+                addTo(otherKeys[i], otherValues[i]);
+            }
+        }
+    }
+
+    public void forEach(LongLongConsumer action) {
+        if (hasZeroKey) {
+            action.accept(0, zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        zeroValue = 0;
+        size = 0;
+    }
+
+    private int find(long key) {
+        int slot = HashTables.mix(key) & mask;
+        long k;
+        while ((k = keys[slot]) != 0) {
+            if (k == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        int slot = HashTables.mix(key) & mask;
+        long k;
+        while ((k = keys[slot]) != 0 && k != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, long key, long value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > maxFill) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != 0) {
+                int slot = HashTables.mix(k) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = k;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void shiftKeys(int pos) {
+        int last;
+        long k;
+        while (true) {
+            pos = ((last = pos) + 1) & mask;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                int ideal = HashTables.mix(k) & mask;
+                if (last <= pos ? last >= ideal || ideal > pos : last >= ideal && ideal > pos) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,252 @@
+package com.learn.common;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * 对象键到 int 值的开放寻址哈希表（线性探测），用于计数等场景替代 HashMap<K, Integer>
+ *  - 键和值分别存放在两个平行数组中，没有 Entry 对象，累加计数时不会装箱；
+ *  - addTo() 原地累加，一次探测完成「查找 + 更新」；
+ *  - addAll() 批量合并另一张表；
+ *  - 删除时向前移动后续的键（backward shift），不使用墓碑标记。
+ * 不支持 null 键；不是线程安全的，设计为每个线程（或每个分治任务）独占一张表。
+ */
+public class Object2IntMap<K> {
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private Object[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int maxFill;
+
+    public Object2IntMap() {
+        this(16);
+    }
+
+    public Object2IntMap(int expected) {
+        allocate(HashTables.capacity(expected, LOAD_FACTOR));
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        maxFill = HashTables.maxFill(capacity, LOAD_FACTOR);
+    }
+
+    /**
+     * 获取键对应的值，不存在时返回 0
+     */
+    public int get(K key) {
+        return getOrDefault(key, 0);
+    }
+
+    public int getOrDefault(K key, int defaultValue) {
+        int slot = find(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    public boolean containsKey(K key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * 设置键对应的值，返回旧值，不存在时返回 0
+     */
+    public int put(K key, int value) {
+        int slot = slot(key);
+        if (keys[slot] == null) {
+            insert(slot, key, value);
+            return 0;
+        }
+        int old = values[slot];
+        values[slot] = value;
+        return old;
+    }
+
+    /**
+     * 原地累加，返回累加后的值；键不存在时相当于 put(key, delta)
+     */
+    public int addTo(K key, int delta) {
+        int slot = slot(key);
+        if (keys[slot] == null) {
+            insert(slot, key, delta);
+            return delta;
+        }
+        return values[slot] += delta;
+    }
+
+    /**
+     * 删除键，返回旧值，不存在时返回 0
+     */
+    public int remove(K key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return 0;
+        }
+        int old = values[slot];
+        size--;
+        shiftKeys(slot);
+        return old;
+    }
+
+    /**
+     * 把另一张表的计数原地累加到当前表中
+     */
+    @SuppressWarnings("unchecked")
+    public void addAll(Object2IntMap<? extends K> other) {
+        if (size + other.size > maxFill) {
+            rehash(HashTables.capacity(size + other.size, LOAD_FACTOR));
+        }
+        Object[] otherKeys = other.keys;
+        int[] otherValues = other.values;
+        for (int i = 0; i < otherKeys.length; i++) {
+            if (otherKeys[i] != null) {
+                addTo((K) otherKeys[i], otherValues[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super K> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                action.accept((K) keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    // 键所在的槽位，不存在时返回 -1
+    private int find(Object key) {
+        int slot = HashTables.mix(key.hashCode()) & mask;
+        Object k;
+        while ((k = keys[slot]) != null) {
+            if (k.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 键所在的槽位，不存在时返回应该插入的空槽位
+    private int slot(Object key) {
+        int slot = HashTables.mix(key.hashCode()) & mask;
+        Object k;
+        while ((k = keys[slot]) != null && !k.equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, Object key, int value) {
+        if (key == null) {
+            throw new NullPointerException("null key");
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > maxFill) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object k = oldKeys[i];
+            if (k != null) {
+                int slot = HashTables.mix(k.hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = k;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // 删除 pos 处的键后，把同一探测链上后续的键向前移动，保证查找时不会提前遇到空槽位
+    private void shiftKeys(int pos) {
+        int last;
+        Object k;
+        while (true) {
+            pos = ((last = pos) + 1) & mask;
+            while (true) {
+                if ((k = keys[pos]) == null) {
+                    keys[last] = null;
+                    return;
+                }
+                int ideal = HashTables.mix(k.hashCode()) & mask;
+                if (last <= pos ? last >= ideal || ideal > pos : last >= ideal && ideal > pos) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Object2IntMap)) {
+            return false;
+        }
+        Object2IntMap<Object> other = (Object2IntMap<Object>) o;
+        if (size != other.size) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                int slot = other.find(keys[i]);
+                if (slot < 0 || other.values[slot] != values[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                h += keys[i].hashCode() ^ values[i];
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(k).append('=').append(v);
+        });
+        return sb.append('}').toString();
+    }
+}